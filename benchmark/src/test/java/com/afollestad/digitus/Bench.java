@@ -0,0 +1,67 @@
+package com.afollestad.digitus;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A tiny repeatable timing harness: a warm-up, then several rounds of a fixed number of
+ * operations. The median round is reported, with the fastest one as a noise floor.
+ */
+final class Bench {
+
+    interface Op {
+        void run() throws Exception;
+    }
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 10;
+
+    /**
+     * Results are written here so the JIT can't drop the work that produced them.
+     */
+    private static volatile Object blackhole;
+
+    private Bench() {
+    }
+
+    static void consume(Object result) {
+        blackhole = result;
+    }
+
+    /**
+     * @return the median time of one operation, in nanoseconds.
+     */
+    static long measure(String name, int opsPerRound, Op op) throws Exception {
+        return measure(name, opsPerRound, 0, op);
+    }
+
+    /**
+     * Same as {@link #measure(String, int, Op)}, also reporting throughput for operations which
+     * each process the given number of bytes.
+     */
+    static long measure(String name, int opsPerRound, long bytesPerOp, Op op) throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++)
+            round(opsPerRound, op);
+        final long[] nanosPerOp = new long[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++)
+            nanosPerOp[i] = round(opsPerRound, op) / opsPerRound;
+        Arrays.sort(nanosPerOp);
+        final long median = nanosPerOp[ROUNDS / 2];
+
+        String line = String.format(Locale.US, "%-44s %12.1f us/op (min %.1f)",
+                name, median / 1000d, nanosPerOp[0] / 1000d);
+        if (bytesPerOp > 0 && median > 0) {
+            double mbPerSecond = (bytesPerOp / (1024d * 1024d)) / (median / 1e9d);
+            line += String.format(Locale.US, "  %9.1f MiB/s", mbPerSecond);
+        }
+        System.out.println(line);
+        return median;
+    }
+
+    private static long round(int ops, Op op) throws Exception {
+        final long start = System.nanoTime();
+        for (int i = 0; i < ops; i++)
+            op.run();
+        return System.nanoTime() - start;
+    }
+}
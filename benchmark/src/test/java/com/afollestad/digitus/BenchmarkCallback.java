@@ -0,0 +1,31 @@
+package com.afollestad.digitus;
+
+/**
+ * Counts session events, and fails fast on errors so a broken setup doesn't produce numbers.
+ */
+class BenchmarkCallback implements DigitusCallback {
+
+    int ready;
+    int listening;
+    int authenticated;
+
+    @Override
+    public void onDigitusReady(Digitus digitus) {
+        ready++;
+    }
+
+    @Override
+    public void onDigitusListening(boolean newFingerprint) {
+        listening++;
+    }
+
+    @Override
+    public void onDigitusAuthenticated(Digitus digitus) {
+        authenticated++;
+    }
+
+    @Override
+    public void onDigitusError(Digitus digitus, DigitusError error) {
+        throw new IllegalStateException("Unexpected error: " + error);
+    }
+}
@@ -0,0 +1,144 @@
+package com.afollestad.digitus;
+
+import android.Manifest;
+import android.app.Activity;
+import android.app.KeyguardManager;
+import android.content.Context;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Key and cipher hot paths, measured through the public API only. Run with
+ * {@code ./gradlew :benchmark:testReleaseUnitTest}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.M, manifest = Config.NONE)
+public class CryptoBenchmark {
+
+    private static final String KEY_NAME = "benchmark";
+    private static final int[] PAYLOAD_SIZES = {64, 1024, 16 * 1024, 256 * 1024, 1024 * 1024};
+
+    private Digitus digitus;
+    private FakeFingerprintSensor sensor;
+
+    @Before
+    public void setUp() {
+        SoftwareKeyStoreProvider.install();
+        Shadows.shadowOf(RuntimeEnvironment.application).grantPermissions(Manifest.permission.USE_FINGERPRINT);
+        // Robolectric's keyguard isn't secure by default, which Digitus reports as REGISTRATION_NEEDED
+        KeyguardManager keyguardManager = (KeyguardManager) RuntimeEnvironment.application.getSystemService(Context.KEYGUARD_SERVICE);
+        Shadows.shadowOf(keyguardManager).setIsKeyguardSecure(true);
+        sensor = new FakeFingerprintSensor().setRepeating(FakeFingerprintSensor.Event.success());
+        Digitus.setFingerprintSensor(sensor);
+        Activity activity = Robolectric.setupActivity(Activity.class);
+        digitus = Digitus.init(activity, KEY_NAME, 1, new BenchmarkCallback());
+        assertTrue(digitus.isReady());
+    }
+
+    @After
+    public void tearDown() {
+        Digitus.deinitAll();
+        Digitus.setFingerprintSensor(null);
+    }
+
+    @Test
+    public void rotateKey() throws Exception {
+        Bench.measure("rotateKey", 200, new Bench.Op() {
+            @Override
+            public void run() {
+                assertTrue(digitus.rotateKey());
+            }
+        });
+    }
+
+    /**
+     * Starting to listen initializes the cipher and starts a sensor request, which is cancelled
+     * right away. No fingerprint is delivered.
+     */
+    @Test
+    public void startListening() throws Exception {
+        Bench.measure("startListening > stopListening (encrypt)", 2000, new Bench.Op() {
+            @Override
+            public void run() {
+                assertTrue(digitus.startListening());
+                assertTrue(digitus.stopListening());
+            }
+        });
+        authenticate(null);
+        final byte[] iv = digitus.getIv();
+        Bench.measure("startListening > stopListening (decrypt)", 2000, new Bench.Op() {
+            @Override
+            public void run() {
+                assertTrue(digitus.startListening(iv));
+                assertTrue(digitus.stopListening());
+            }
+        });
+    }
+
+    @Test
+    public void encryptThroughput() throws Exception {
+        for (int size : PAYLOAD_SIZES) {
+            final byte[] payload = payload(size);
+            Bench.measure("encrypt " + size + " B", opsFor(size), size, new Bench.Op() {
+                @Override
+                public void run() throws Exception {
+                    authenticate(null);
+                    Bench.consume(digitus.encrypt(payload));
+                }
+            });
+        }
+    }
+
+    @Test
+    public void decryptThroughput() throws Exception {
+        for (int size : PAYLOAD_SIZES) {
+            authenticate(null);
+            final byte[] encrypted = digitus.encrypt(payload(size));
+            final byte[] iv = digitus.getIv();
+            Bench.measure("decrypt " + size + " B", opsFor(size), size, new Bench.Op() {
+                @Override
+                public void run() throws Exception {
+                    authenticate(iv);
+                    Bench.consume(digitus.decrypt(encrypted));
+                }
+            });
+        }
+    }
+
+    /**
+     * Unlocks the cipher through the simulated sensor's success path, like a real touch would.
+     *
+     * @param iv the IV to decrypt with, or null to encrypt.
+     */
+    private void authenticate(byte[] iv) {
+        assertTrue(iv != null ? digitus.startListening(iv) : digitus.startListening());
+        assertTrue(sensor.deliverNext());
+        assertTrue(digitus.isCipherAuthenticated());
+    }
+
+    /**
+     * Scales the number of operations so each round processes a similar amount of data.
+     */
+    private static int opsFor(int size) {
+        return Math.max(10, Math.min(5000, (8 * 1024 * 1024) / size));
+    }
+
+    private static byte[] payload(int size) {
+        final byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        return payload;
+    }
+}
@@ -0,0 +1,83 @@
+package com.afollestad.digitus;
+
+import android.Manifest;
+import android.app.Activity;
+import android.app.KeyguardManager;
+import android.content.Context;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A whole session with a simulated sensor which accepts the fingerprint immediately, so the
+ * numbers are Digitus' own overhead per authentication.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.M, manifest = Config.NONE)
+public class SessionBenchmark {
+
+    private static final String KEY_NAME = "benchmark";
+    private static final byte[] SECRET = new byte[256];
+
+    private Activity activity;
+    private FakeFingerprintSensor sensor;
+
+    @Before
+    public void setUp() {
+        SoftwareKeyStoreProvider.install();
+        Shadows.shadowOf(RuntimeEnvironment.application).grantPermissions(Manifest.permission.USE_FINGERPRINT);
+        // Robolectric's keyguard isn't secure by default, which Digitus reports as REGISTRATION_NEEDED
+        KeyguardManager keyguardManager = (KeyguardManager) RuntimeEnvironment.application.getSystemService(Context.KEYGUARD_SERVICE);
+        Shadows.shadowOf(keyguardManager).setIsKeyguardSecure(true);
+        sensor = new FakeFingerprintSensor().setRepeating(FakeFingerprintSensor.Event.success());
+        Digitus.setFingerprintSensor(sensor);
+        activity = Robolectric.setupActivity(Activity.class);
+    }
+
+    @After
+    public void tearDown() {
+        Digitus.deinitAll();
+        Digitus.setFingerprintSensor(null);
+    }
+
+    @Test
+    public void fullCycle() throws Exception {
+        final BenchmarkCallback callback = new BenchmarkCallback();
+        Bench.measure("init > listen > authenticated > deinit", 500, new Bench.Op() {
+            @Override
+            public void run() throws Exception {
+                Digitus digitus = Digitus.init(activity, KEY_NAME, 1, callback);
+                digitus.startListening();
+                sensor.deliverNext();
+                Bench.consume(digitus.encrypt(SECRET));
+                Digitus.deinit(KEY_NAME);
+            }
+        });
+        assertEquals(callback.ready, callback.authenticated);
+    }
+
+    @Test
+    public void reusedSession() throws Exception {
+        final BenchmarkCallback callback = new BenchmarkCallback();
+        final Digitus digitus = Digitus.init(activity, KEY_NAME, 1, callback);
+        Bench.measure("listen > authenticated (reused session)", 2000, new Bench.Op() {
+            @Override
+            public void run() throws Exception {
+                digitus.startListening();
+                sensor.deliverNext();
+                Bench.consume(digitus.encrypt(SECRET));
+            }
+        });
+        assertEquals(callback.listening, callback.authenticated);
+    }
+}
@@ -0,0 +1,178 @@
+package com.afollestad.digitus;
+
+import android.Manifest;
+import android.app.Activity;
+import android.app.KeyguardManager;
+import android.content.Context;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Thousands of sessions driven through scripted sensor events, several key names at a time,
+ * checking that nothing is left behind: no sessions, no running requests, no heap growth.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.M, manifest = Config.NONE)
+public class SessionStressTest {
+
+    private static final int SESSIONS = 5000;
+    private static final int KEY_NAMES = 16;
+    private static final byte[] SECRET = new byte[256];
+    /**
+     * Generous, this catches memory retained per session rather than measuring it.
+     */
+    private static final long MAX_HEAP_GROWTH_BYTES = 8 * 1024 * 1024;
+
+    private Activity activity;
+    private FakeFingerprintSensor sensor;
+
+    @Before
+    public void setUp() {
+        SoftwareKeyStoreProvider.install();
+        Shadows.shadowOf(RuntimeEnvironment.application).grantPermissions(Manifest.permission.USE_FINGERPRINT);
+        KeyguardManager keyguardManager = (KeyguardManager) RuntimeEnvironment.application.getSystemService(Context.KEYGUARD_SERVICE);
+        Shadows.shadowOf(keyguardManager).setIsKeyguardSecure(true);
+        sensor = new FakeFingerprintSensor();
+        Digitus.setFingerprintSensor(sensor);
+        activity = Robolectric.setupActivity(Activity.class);
+    }
+
+    @After
+    public void tearDown() {
+        Digitus.deinitAll();
+        Digitus.setFingerprintSensor(null);
+    }
+
+    @Test
+    public void scriptedSessions() throws Exception {
+        final StressCallback callback = new StressCallback();
+        // Warm up caches and pools, so they don't count as growth
+        runSessions(SESSIONS / 5, callback);
+        Digitus.deinitAll();
+        sensor.reset();
+
+        final StressCallback measured = new StressCallback();
+        final long before = usedHeap();
+        runSessions(SESSIONS, measured);
+        Digitus.deinitAll();
+        final long growth = usedHeap() - before;
+        System.out.println("Heap growth over " + SESSIONS + " sessions: " + growth / 1024 + " KiB");
+
+        assertTrue("Heap grew by " + growth + " bytes", growth < MAX_HEAP_GROWTH_BYTES);
+        assertEquals(SESSIONS, measured.authenticated);
+        assertEquals(SESSIONS, measured.notRecognized);
+        assertEquals(SESSIONS, measured.help);
+        assertEquals(SESSIONS / 7, measured.lockouts);
+        assertTrue(SessionRegistry.all().isEmpty());
+        assertFalse(sensor.isListening());
+        assertEquals(sensor.getAuthenticateCount(), measured.listening);
+    }
+
+    /**
+     * Each session sees a failure, a help message and a success, and every seventh one is locked
+     * out first. A third of the sessions are de-initialized, the rest are picked up again.
+     */
+    private void runSessions(int count, StressCallback callback) throws Exception {
+        for (int i = 0; i < count; i++) {
+            final String keyName = "stress-" + (i % KEY_NAMES);
+            final Digitus digitus = Digitus.init(activity, keyName, 1, callback);
+            if (i % 7 == 6) {
+                sensor.enqueue(FakeFingerprintSensor.Event.lockout());
+                assertTrue(digitus.startListening());
+                assertTrue(sensor.deliverNext());
+                assertFalse(digitus.isListening());
+            }
+            sensor.enqueue(FakeFingerprintSensor.Event.failure(),
+                    FakeFingerprintSensor.Event.help(1, "Partial fingerprint detected."),
+                    FakeFingerprintSensor.Event.success());
+            assertTrue(digitus.startListening());
+            while (sensor.deliverNext()) {
+                // Deliver the whole script
+            }
+            Bench.consume(digitus.encrypt(SECRET));
+            if (i % 3 == 0)
+                Digitus.deinit(keyName);
+        }
+    }
+
+    @Test
+    public void destroyedActivitiesReleaseSessions() {
+        final StressCallback callback = new StressCallback();
+        for (int i = 0; i < 200; i++) {
+            final ActivityController<Activity> controller = Robolectric.buildActivity(Activity.class).setup();
+            final Digitus digitus = Digitus.init(controller.get(), "activity-" + (i % KEY_NAMES), 1, callback);
+            assertTrue(digitus.startListening());
+            // Never de-initialized, destroying the Activity has to clean up
+            controller.destroy();
+            assertNull(Digitus.get("activity-" + (i % KEY_NAMES)));
+            assertFalse(sensor.isListening());
+        }
+        assertTrue(SessionRegistry.all().isEmpty());
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static class StressCallback implements DigitusCallback {
+
+        int listening;
+        int authenticated;
+        int notRecognized;
+        int help;
+        int lockouts;
+
+        @Override
+        public void onDigitusReady(Digitus digitus) {
+        }
+
+        @Override
+        public void onDigitusListening(boolean newFingerprint) {
+            assertFalse(newFingerprint);
+            listening++;
+        }
+
+        @Override
+        public void onDigitusAuthenticated(Digitus digitus) {
+            authenticated++;
+        }
+
+        @Override
+        public void onDigitusError(Digitus digitus, DigitusError error) {
+            switch (error.getType()) {
+                case FINGERPRINT_NOT_RECOGNIZED:
+                    notRecognized++;
+                    break;
+                case HELP_ERROR:
+                    help++;
+                    break;
+                case UNRECOVERABLE_ERROR:
+                    assertEquals(FakeFingerprintSensor.ERROR_LOCKOUT, error.getCode());
+                    lockouts++;
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected error: " + error);
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.afollestad.digitus;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyInfo;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.Key;
+import java.security.KeyStoreException;
+import java.security.KeyStoreSpi;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.KeySpec;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.KeyGeneratorSpi;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactorySpi;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An in-memory stand-in for the Android Key Store, registered under the same name so the
+ * library's keystore code runs unchanged on the JVM. Keys are plain software AES keys; there is
+ * no TEE and no authentication gating, so numbers measure Digitus' own overhead. The spec each key
+ * was generated with is kept, so the library can read it back as a {@link KeyInfo}.
+ */
+final class SoftwareKeyStoreProvider extends Provider {
+
+    private static final String NAME = "AndroidKeyStore";
+    private static final Map<String, Key> keys = new ConcurrentHashMap<>();
+    private static final Map<String, KeyGenParameterSpec> specs = new ConcurrentHashMap<>();
+
+    private SoftwareKeyStoreProvider() {
+        super(NAME, 1.0, "In-memory Android Key Store for benchmarks");
+        put("KeyStore." + NAME, InMemoryKeyStore.class.getName());
+        put("KeyGenerator.AES", AesKeyGenerator.class.getName());
+        put("SecretKeyFactory.AES", AesKeyFactory.class.getName());
+    }
+
+    static synchronized void install() {
+        if (Security.getProvider(NAME) == null)
+            Security.addProvider(new SoftwareKeyStoreProvider());
+        // Robolectric puts Bouncy Castle 1.46 first, its GCM predates GCMParameterSpec
+        final Provider bouncyCastle = Security.getProvider("BC");
+        if (bouncyCastle != null) {
+            Security.removeProvider("BC");
+            Security.addProvider(bouncyCastle);
+        }
+    }
+
+    public static final class InMemoryKeyStore extends KeyStoreSpi {
+
+        @Override
+        public Key engineGetKey(String alias, char[] password) {
+            return keys.get(alias);
+        }
+
+        @Override
+        public Certificate[] engineGetCertificateChain(String alias) {
+            return null;
+        }
+
+        @Override
+        public Certificate engineGetCertificate(String alias) {
+            return null;
+        }
+
+        @Override
+        public Date engineGetCreationDate(String alias) {
+            return keys.containsKey(alias) ? new Date() : null;
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, Key key, char[] password, Certificate[] chain) {
+            keys.put(alias, key);
+        }
+
+        @Override
+        public void engineSetKeyEntry(String alias, byte[] key, Certificate[] chain) throws KeyStoreException {
+            throw new KeyStoreException("Not supported");
+        }
+
+        @Override
+        public void engineSetCertificateEntry(String alias, Certificate cert) throws KeyStoreException {
+            throw new KeyStoreException("Not supported");
+        }
+
+        @Override
+        public void engineDeleteEntry(String alias) {
+            keys.remove(alias);
+            specs.remove(alias);
+        }
+
+        @Override
+        public Enumeration<String> engineAliases() {
+            return Collections.enumeration(keys.keySet());
+        }
+
+        @Override
+        public boolean engineContainsAlias(String alias) {
+            return keys.containsKey(alias);
+        }
+
+        @Override
+        public int engineSize() {
+            return keys.size();
+        }
+
+        @Override
+        public boolean engineIsKeyEntry(String alias) {
+            return keys.containsKey(alias);
+        }
+
+        @Override
+        public boolean engineIsCertificateEntry(String alias) {
+            return false;
+        }
+
+        @Override
+        public String engineGetCertificateAlias(Certificate cert) {
+            return null;
+        }
+
+        @Override
+        public void engineStore(OutputStream stream, char[] password) {
+        }
+
+        @Override
+        public void engineLoad(InputStream stream, char[] password) {
+        }
+    }
+
+    public static final class AesKeyGenerator extends KeyGeneratorSpi {
+
+        private final SecureRandom random = new SecureRandom();
+        private KeyGenParameterSpec spec;
+        private int keySizeBits = 256;
+
+        @Override
+        protected void engineInit(SecureRandom random) {
+            throw new UnsupportedOperationException("A KeyGenParameterSpec is required");
+        }
+
+        @Override
+        protected void engineInit(AlgorithmParameterSpec params, SecureRandom random) throws InvalidAlgorithmParameterException {
+            if (!(params instanceof KeyGenParameterSpec))
+                throw new InvalidAlgorithmParameterException("A KeyGenParameterSpec is required");
+            spec = (KeyGenParameterSpec) params;
+            if (spec.getKeySize() > 0)
+                keySizeBits = spec.getKeySize();
+        }
+
+        @Override
+        protected void engineInit(int keySize, SecureRandom random) {
+            throw new UnsupportedOperationException("A KeyGenParameterSpec is required");
+        }
+
+        @Override
+        protected SecretKey engineGenerateKey() {
+            final byte[] raw = new byte[keySizeBits / 8];
+            random.nextBytes(raw);
+            final SecretKey key = new SecretKeySpec(raw, "AES");
+            keys.put(spec.getKeystoreAlias(), key);
+            specs.put(spec.getKeystoreAlias(), spec);
+            return key;
+        }
+    }
+
+    public static final class AesKeyFactory extends SecretKeyFactorySpi {
+
+        @Override
+        protected KeySpec engineGetKeySpec(SecretKey key, Class<?> keySpec) throws InvalidKeySpecException {
+            if (keySpec != KeyInfo.class)
+                throw new InvalidKeySpecException("Only KeyInfo is supported");
+            for (Map.Entry<String, Key> entry : keys.entrySet()) {
+                if (entry.getValue() == key)
+                    return keyInfo(entry.getKey(), specs.get(entry.getKey()));
+            }
+            throw new InvalidKeySpecException("Not a key from this store");
+        }
+
+        /**
+         * KeyInfo's constructor is hidden from the SDK, this is the one from API 23.
+         */
+        private static KeyInfo keyInfo(String alias, KeyGenParameterSpec spec) throws InvalidKeySpecException {
+            try {
+                final Constructor<KeyInfo> constructor = KeyInfo.class.getConstructor(String.class,
+                        boolean.class, int.class, int.class, Date.class, Date.class, Date.class, int.class,
+                        String[].class, String[].class, String[].class, String[].class, boolean.class,
+                        int.class, boolean.class);
+                return constructor.newInstance(alias, false, 0, spec.getKeySize(),
+                        spec.getKeyValidityStart(), spec.getKeyValidityForOriginationEnd(),
+                        spec.getKeyValidityForConsumptionEnd(), spec.getPurposes(),
+                        spec.getEncryptionPaddings(), spec.getSignaturePaddings(),
+                        spec.isDigestsSpecified() ? spec.getDigests() : new String[0],
+                        spec.getBlockModes(), spec.isUserAuthenticationRequired(),
+                        spec.getUserAuthenticationValidityDurationSeconds(), false);
+            } catch (ReflectiveOperationException e) {
+                throw new InvalidKeySpecException("KeyInfo can't be created on this API level", e);
+            }
+        }
+
+        @Override
+        protected SecretKey engineGenerateSecret(KeySpec keySpec) throws InvalidKeySpecException {
+            throw new InvalidKeySpecException("Not supported");
+        }
+
+        @Override
+        protected SecretKey engineTranslateKey(SecretKey key) {
+            return key;
+        }
+    }
+}
@@ -0,0 +1,2 @@
+# Apps which only show SlimFingerprintDialog may exclude material-dialogs, only FingerprintDialog uses it
+-dontwarn com.afollestad.materialdialogs.**
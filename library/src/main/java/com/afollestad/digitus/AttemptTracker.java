@@ -0,0 +1,126 @@
+package com.afollestad.digitus;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.MainThread;
+
+/**
+ * Remembers how fingerprint attempts went for a key name, across dialogs and process restarts,
+ * so the fingerprint dialog can send the user to the password screen before the sensor locks
+ * itself out.
+ * <p>
+ * The sensor locks out for {@link #LOCKOUT_MILLIS} after {@link #MAX_FAILURES} failures in a row.
+ * Each attempt updates a moving estimate of the chance that a touch is recognized; once it's
+ * unlikely that any of the attempts left before the lockout succeeds, fingerprint isn't worth
+ * waiting for. Misses usually come from passing conditions like wet fingers, so the estimate drifts
+ * back to its initial value over time, and starts over once the user signs in with their password.
+ */
+@MainThread
+final class AttemptTracker {
+
+    // Error codes used by FingerprintManager
+    static final int ERROR_TIMEOUT = 3;
+    static final int ERROR_LOCKOUT = 7;
+
+    static final int MAX_FAILURES = 5;
+    static final long LOCKOUT_MILLIS = 30 * 1000;
+
+    private static final String PREFS_NAME = "[DIGITUS_ATTEMPTS]";
+    // Weight of the latest attempt in the success estimate, and the estimate before any attempts
+    private static final float ALPHA = 0.2f;
+    private static final float INITIAL_SUCCESS_RATE = 0.9f;
+    private static final float GIVE_UP_PROBABILITY = 0.5f;
+    // Time for the estimate to get halfway back to INITIAL_SUCCESS_RATE
+    private static final long DECAY_HALF_LIFE_MILLIS = 60 * 60 * 1000;
+
+    private final SharedPreferences prefs;
+    private final String keyName;
+
+    private int consecutiveFailures;
+    private float successRate;
+    private long lockedOutAt;
+    private long updatedAt;
+
+    AttemptTracker(Context context, String keyName) {
+        this.prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.keyName = keyName;
+        consecutiveFailures = prefs.getInt(keyName + ":failures", 0);
+        successRate = prefs.getFloat(keyName + ":success_rate", INITIAL_SUCCESS_RATE);
+        lockedOutAt = prefs.getLong(keyName + ":locked_out_at", 0);
+        updatedAt = prefs.getLong(keyName + ":updated_at", 0);
+        successRate = decay(successRate, System.currentTimeMillis() - updatedAt);
+    }
+
+    /**
+     * Moves a success estimate back toward {@link #INITIAL_SUCCESS_RATE}, by half for every
+     * {@link #DECAY_HALF_LIFE_MILLIS} elapsed.
+     */
+    static float decay(float successRate, long elapsed) {
+        // A negative value means the clock was changed, don't trust the old estimate
+        if (elapsed < 0) return INITIAL_SUCCESS_RATE;
+        final double weight = Math.pow(0.5, (double) elapsed / DECAY_HALF_LIFE_MILLIS);
+        return (float) (INITIAL_SUCCESS_RATE + (successRate - INITIAL_SUCCESS_RATE) * weight);
+    }
+
+    void recordSuccess() {
+        consecutiveFailures = 0;
+        successRate += ALPHA * (1f - successRate);
+        save();
+    }
+
+    void recordFailure() {
+        consecutiveFailures++;
+        successRate -= ALPHA * successRate;
+        save();
+    }
+
+    /**
+     * Records a sign in with the password. The misses that led there say little about the next
+     * session, so the estimate starts over; the failure count is kept since the sensor keeps it too.
+     */
+    void recordPasswordSuccess() {
+        successRate = INITIAL_SUCCESS_RATE;
+        save();
+    }
+
+    /**
+     * Records an error from the sensor, which only matters if it's a lockout.
+     */
+    void recordError(int errorCode) {
+        if (errorCode != ERROR_LOCKOUT) return;
+        // The sensor's own count starts over once the lockout ends
+        consecutiveFailures = 0;
+        lockedOutAt = System.currentTimeMillis();
+        save();
+    }
+
+    /**
+     * @return whether the sensor is probably still locked out from an earlier lockout.
+     */
+    boolean isLockedOut() {
+        final long elapsed = System.currentTimeMillis() - lockedOutAt;
+        // A negative value means the clock was changed, don't trust it
+        return elapsed >= 0 && elapsed < LOCKOUT_MILLIS;
+    }
+
+    /**
+     * @return whether a fingerprint is unlikely to be recognized before the sensor locks out.
+     */
+    boolean shouldUseBackup() {
+        if (isLockedOut()) return true;
+        final int attemptsLeft = MAX_FAILURES - consecutiveFailures;
+        if (attemptsLeft <= 0) return true;
+        final double allFail = Math.pow(1f - successRate, attemptsLeft);
+        return 1 - allFail < GIVE_UP_PROBABILITY;
+    }
+
+    private void save() {
+        updatedAt = System.currentTimeMillis();
+        prefs.edit()
+                .putInt(keyName + ":failures", consecutiveFailures)
+                .putFloat(keyName + ":success_rate", successRate)
+                .putLong(keyName + ":locked_out_at", lockedOutAt)
+                .putLong(keyName + ":updated_at", updatedAt)
+                .apply();
+    }
+}
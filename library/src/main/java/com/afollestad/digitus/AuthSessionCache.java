@@ -0,0 +1,111 @@
+package com.afollestad.digitus;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks time-windowed authentication sessions for keys created with a validity duration. While
+ * a key's session is valid, its cipher can be used without touching the sensor again. Sessions are
+ * evicted when they expire, when the screen turns off, or when the app goes to the background.
+ */
+final class AuthSessionCache {
+
+    private static final Map<String, Integer> validities = new HashMap<>();
+    private static final Map<String, Long> expirations = new HashMap<>();
+    private static boolean registered;
+
+    private AuthSessionCache() {
+    }
+
+    static synchronized void setValidity(@NonNull String keyName, int seconds) {
+        validities.put(keyName, Math.max(0, seconds));
+        expirations.remove(keyName);
+    }
+
+    /**
+     * Takes on the validity an existing key was generated with, unless the app configured one.
+     *
+     * @return false if the app configured another validity than the key's.
+     */
+    static synchronized boolean adoptValidity(@NonNull String keyName, int keySeconds) {
+        Integer seconds = validities.get(keyName);
+        if (seconds == null) {
+            validities.put(keyName, keySeconds);
+            return true;
+        }
+        return seconds == keySeconds;
+    }
+
+    /**
+     * @return how long an authentication stays valid for the key, or 0 if every use of the key
+     * needs a fingerprint.
+     */
+    static synchronized int getValidity(@NonNull String keyName) {
+        Integer seconds = validities.get(keyName);
+        return seconds != null ? seconds : 0;
+    }
+
+    static synchronized void recordAuthentication(@NonNull String keyName) {
+        int seconds = getValidity(keyName);
+        if (seconds > 0)
+            expirations.put(keyName, SystemClock.elapsedRealtime() + seconds * 1000L);
+    }
+
+    static synchronized boolean isAuthenticated(@NonNull String keyName) {
+        Long expiration = expirations.get(keyName);
+        if (expiration == null) return false;
+        if (SystemClock.elapsedRealtime() >= expiration) {
+            expirations.remove(keyName);
+            return false;
+        }
+        return true;
+    }
+
+    static synchronized void evict(@NonNull String keyName) {
+        expirations.remove(keyName);
+    }
+
+    static synchronized void evictAll() {
+        expirations.clear();
+    }
+
+    /**
+     * Starts listening for the signals which end every session. Only the first call has an effect.
+     */
+    static synchronized void register(@NonNull Context context) {
+        if (registered) return;
+        registered = true;
+        final Context appContext = context.getApplicationContext();
+        appContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                evictAll();
+            }
+        }, new IntentFilter(Intent.ACTION_SCREEN_OFF));
+        appContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                // UI_HIDDEN is sent once all of the app's UI has gone to the background
+                if (level >= TRIM_MEMORY_UI_HIDDEN)
+                    evictAll();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+            }
+        });
+    }
+}
@@ -0,0 +1,226 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A single authentication started with {@link Digitus#authenticate()}. It completes with the
+ * session once a fingerprint is authenticated, so the unlocked cipher can be used right away, or
+ * fails with a {@link DigitusException} when listening can't go on. Unrecognized fingerprints and
+ * help messages don't end it, the user can simply try again.
+ * <p>
+ * Cancelling stops the sensor. Listeners make it easy to adapt to other async libraries: complete
+ * your own future or emitter from them, and cancel this one when yours is disposed. Don't block
+ * on {@link #get()} from the main thread, the sensor reports to it by default.
+ */
+public final class AuthenticationFuture implements Future<Digitus> {
+
+    public interface Listener {
+
+        void onAuthenticated(@NonNull Digitus digitus);
+
+        void onError(@NonNull DigitusException e);
+    }
+
+    private static final int PENDING = 0;
+    private static final int AUTHENTICATED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private final Digitus digitus;
+    private final Observer observer = new Observer();
+    private final List<Runnable> pendingListeners = new ArrayList<>();
+    private int state = PENDING;
+    private DigitusException error;
+
+    AuthenticationFuture(@NonNull Digitus digitus) {
+        this.digitus = digitus;
+    }
+
+    /**
+     * @return the callback which completes this future, it's subscribed to the session before
+     * listening starts.
+     */
+    DigitusCallback observer() {
+        return observer;
+    }
+
+    /**
+     * Runs the listener once the authentication is over, right away if it already is. Nothing is
+     * delivered when the future is cancelled.
+     *
+     * @param executor the executor to notify the listener with, or null for the main thread.
+     */
+    public AuthenticationFuture addListener(@NonNull final Listener listener, @Nullable final Executor executor) {
+        final Runnable notification = new Runnable() {
+            @Override
+            public void run() {
+                final DigitusException failure;
+                synchronized (AuthenticationFuture.this) {
+                    if (state == CANCELLED) return;
+                    failure = error;
+                }
+                if (failure != null) {
+                    listener.onError(failure);
+                } else {
+                    listener.onAuthenticated(digitus);
+                }
+            }
+        };
+        synchronized (this) {
+            if (state == PENDING) {
+                pendingListeners.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        post(notification, executor);
+                    }
+                });
+                return this;
+            }
+        }
+        post(notification, executor);
+        return this;
+    }
+
+    /**
+     * Same as {@link #addListener(Listener, Executor)}, on the main thread.
+     */
+    public AuthenticationFuture addListener(@NonNull Listener listener) {
+        return addListener(listener, null);
+    }
+
+    private static void post(Runnable runnable, @Nullable Executor executor) {
+        if (executor != null) {
+            executor.execute(runnable);
+        } else {
+            DigitusExecutors.postToMain(runnable);
+        }
+    }
+
+    /**
+     * Stops the sensor if the authentication is still pending. It's stopped for every caller of
+     * the session, since a session listens for one operation at a time.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!complete(CANCELLED, null)) return false;
+        digitus.stopListening();
+        return true;
+    }
+
+    /**
+     * Called when the session is de-initialized while the authentication is pending.
+     */
+    void onSessionClosed() {
+        complete(CANCELLED, null);
+    }
+
+    /**
+     * Called when listening couldn't be started, unless the future is already over.
+     */
+    void fail(@NonNull DigitusException e) {
+        complete(FAILED, e);
+    }
+
+    private boolean complete(int newState, @Nullable DigitusException failure) {
+        final List<Runnable> listeners;
+        synchronized (this) {
+            if (state != PENDING) return false;
+            state = newState;
+            error = failure;
+            notifyAll();
+            listeners = new ArrayList<>(pendingListeners);
+            pendingListeners.clear();
+        }
+        digitus.removeCallback(observer);
+        for (Runnable listener : listeners)
+            listener.run();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != PENDING;
+    }
+
+    @Override
+    public synchronized Digitus get() throws InterruptedException, ExecutionException {
+        while (state == PENDING)
+            wait();
+        return result();
+    }
+
+    @Override
+    public synchronized Digitus get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (state == PENDING) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private Digitus result() throws ExecutionException {
+        if (state == CANCELLED)
+            throw new CancellationException("The authentication was cancelled.");
+        else if (state == FAILED)
+            throw new ExecutionException(error);
+        return digitus;
+    }
+
+    /**
+     * Subscribed to the session while the authentication is pending. Events are delivered on
+     * whatever thread produces them, listeners pick their own.
+     */
+    final class Observer implements DigitusCallback {
+
+        @Override
+        public void onDigitusReady(Digitus digitus) {
+        }
+
+        @Override
+        public void onDigitusListening(boolean newFingerprint) {
+            // The sensor isn't started, confirm the user another way and rotate the key
+            if (newFingerprint)
+                complete(FAILED, new DigitusException(DigitusError.KEY_INVALIDATED));
+        }
+
+        @Override
+        public void onDigitusAuthenticated(Digitus digitus) {
+            complete(AUTHENTICATED, null);
+        }
+
+        @Override
+        public void onDigitusError(Digitus digitus, DigitusError error) {
+            switch (error.getType()) {
+                case FINGERPRINT_NOT_RECOGNIZED:
+                case HELP_ERROR:
+                    // The user can try again
+                    break;
+                default:
+                    complete(FAILED, new DigitusException(error));
+                    break;
+            }
+        }
+
+        AuthenticationFuture future() {
+            return AuthenticationFuture.this;
+        }
+    }
+}
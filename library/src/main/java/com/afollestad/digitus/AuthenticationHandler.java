@@ -1,83 +1,121 @@
 package com.afollestad.digitus;
 
 import android.Manifest;
-import android.annotation.TargetApi;
-import android.content.Context;
-import android.hardware.fingerprint.FingerprintManager;
-import android.os.Build;
-import android.os.CancellationSignal;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
 
+import java.security.Signature;
+
+import javax.crypto.Cipher;
+
 /**
  * @author Aidan Follestad (afollestad)
  */
-@TargetApi(Build.VERSION_CODES.M)
-class AuthenticationHandler extends FingerprintManager.AuthenticationCallback {
+class AuthenticationHandler implements FingerprintSensor.Callback {
 
-    private CancellationSignal mCancellationSignal;
-    private boolean mSelfCancelled;
-    private FingerprintManager.CryptoObject mCryptoObject;
-    private Context mContext;
+    // Sensor callbacks may run on a different thread than start() and stop()
+    private volatile FingerprintSensor.Request mRequest;
+    private volatile boolean mSelfCancelled;
+    private volatile boolean mDone;
+    private long mStartNanos;
+    private boolean mTouched;
+    private Cipher mCipher;
+    private Signature mSignature;
 
     private Digitus mDigitus;
 
-    public AuthenticationHandler(Digitus digitus, FingerprintManager.CryptoObject cryptoObject) {
+    /**
+     * @param cipher    the cipher to unlock, or null.
+     * @param signature the signature to unlock instead of a cipher, or null.
+     */
+    public AuthenticationHandler(Digitus digitus, @Nullable Cipher cipher, @Nullable Signature signature) {
         mDigitus = digitus;
-        mCryptoObject = cryptoObject;
-        mContext = digitus.context.getApplicationContext();
+        mCipher = cipher;
+        mSignature = signature;
     }
 
     public boolean isReadyToStart() {
-        return mCancellationSignal == null;
+        return mRequest == null;
     }
 
     @RequiresPermission(Manifest.permission.USE_FINGERPRINT)
     public void start() {
-        mCancellationSignal = new CancellationSignal();
         mSelfCancelled = false;
-        mDigitus.fingerprintManager.authenticate(mCryptoObject, mCancellationSignal, 0 /* flags */, this, null);
+        mStartNanos = Metrics.start();
+        mTouched = false;
+        mDone = false;
+        final FingerprintSensor.Request request = mSignature != null ?
+                mDigitus.sensor.authenticate(mSignature, mDigitus.sensorHandler, this) :
+                mDigitus.sensor.authenticate(mCipher, mDigitus.sensorHandler, this);
+        // A sensor may finish the request before authenticate() even returns
+        if (!mDone)
+            mRequest = request;
     }
 
     public void stop() {
-        if (mCancellationSignal != null) {
+        mDone = true;
+        final FingerprintSensor.Request request = mRequest;
+        if (request != null) {
             mSelfCancelled = true;
-            mCancellationSignal.cancel();
-            mCancellationSignal = null;
+            mRequest = null;
+            request.cancel();
         }
     }
 
-    // Callbacks from FingerprintManager
+    private void onTouched() {
+        if (mTouched) return;
+        mTouched = true;
+        Metrics.phase(mDigitus.keyName, DigitusMetrics.Phase.TIME_TO_TOUCH, mStartNanos);
+    }
+
+    // Callbacks from the sensor
 
     @Override
-    public void onAuthenticationError(int errorCode, CharSequence errString) {
-        super.onAuthenticationError(errorCode, errString);
+    public void onError(int errorCode, @NonNull CharSequence errString) {
         if (!mSelfCancelled) {
-            if (mDigitus.callback != null)
-                mDigitus.callback.onDigitusError(mDigitus, DigitusErrorType.UNRECOVERABLE_ERROR, new Exception(errString.toString()));
+            Metrics.event(mDigitus.keyName, DigitusMetrics.Event.ERROR);
+            mDigitus.dispatchError(mDigitus, DigitusError.framework(errorCode, errString));
         }
         stop();
-        mDigitus.fingerprintManager = mContext.getSystemService(FingerprintManager.class);
     }
 
     @Override
-    public void onAuthenticationFailed() {
-        super.onAuthenticationFailed();
-        if (mDigitus.callback != null)
-            mDigitus.callback.onDigitusError(mDigitus, DigitusErrorType.FINGERPRINT_NOT_RECOGNIZED, new Exception("Fingerprint not recognized, try again."));
+    public void onFailed() {
+        onTouched();
+        Metrics.event(mDigitus.keyName, DigitusMetrics.Event.FAILED);
+        mDigitus.dispatchError(mDigitus, DigitusError.NOT_RECOGNIZED);
     }
 
     @Override
-    public void onAuthenticationHelp(int helpCode, CharSequence helpString) {
-        super.onAuthenticationHelp(helpCode, helpString);
-        if (mDigitus.callback != null)
-            mDigitus.callback.onDigitusError(mDigitus, DigitusErrorType.HELP_ERROR, new Exception(helpString.toString()));
+    public void onHelp(int helpCode, @NonNull CharSequence helpString) {
+        onTouched();
+        Metrics.event(mDigitus.keyName, DigitusMetrics.Event.HELP);
+        mDigitus.dispatchError(mDigitus, DigitusError.help(helpCode, helpString));
     }
 
     @Override
-    public void onAuthenticationSucceeded(FingerprintManager.AuthenticationResult result) {
-        super.onAuthenticationSucceeded(result);
-        if (mDigitus.callback != null)
-            mDigitus.callback.onDigitusAuthenticated(mDigitus);
+    public void onSucceeded(@Nullable Cipher cipher) {
+        onTouched();
+        Metrics.phase(mDigitus.keyName, DigitusMetrics.Phase.TIME_TO_SUCCESS, mStartNanos);
+        if (mSignature != null) {
+            // Signing keys always need an authentication per use
+            mDigitus.authenticatedSignature = mSignature;
+        } else if (AuthSessionCache.getValidity(mDigitus.keyName) > 0) {
+            // Session mode keys are unlocked by the authentication itself for a while
+            AuthSessionCache.recordAuthentication(mDigitus.keyName);
+            if (!mDigitus.unlockSessionCipher()) {
+                // The cipher would throw on first use, e.g. because the lock screen was removed
+                Metrics.event(mDigitus.keyName, DigitusMetrics.Event.ERROR);
+                mDigitus.dispatchError(mDigitus, DigitusError.KEY_FAILED);
+                stop();
+                return;
+            }
+        } else {
+            mDigitus.authenticatedCipher = cipher;
+        }
+        Metrics.event(mDigitus.keyName, DigitusMetrics.Event.AUTHENTICATED);
+        mDigitus.dispatchAuthenticated(mDigitus);
         stop();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,181 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Software AES-GCM used for the items of a {@link SealedBatch} and the records of a
+ * {@link DigitusVault}. Only the data key goes through the Android Key Store, so a batch costs one
+ * fingerprint touch and one TEE operation no matter how many items it has. Decryption of large
+ * batches is spread across cores.
+ */
+final class BatchCrypto {
+
+    static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_LENGTH_BYTES = 32;
+    private static final int NONCE_LENGTH_BYTES = 12;
+    static final int BATCH_ID_LENGTH_BYTES = 16;
+    private static final int TAG_LENGTH_BITS = 128;
+    /**
+     * Below this many bytes in total, handing work to other threads costs more than it saves.
+     */
+    private static final int PARALLEL_THRESHOLD_BYTES = 64 * 1024;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private BatchCrypto() {
+    }
+
+    static SecretKey newDataKey() {
+        byte[] raw = new byte[KEY_LENGTH_BYTES];
+        random.nextBytes(raw);
+        return new SecretKeySpec(raw, "AES");
+    }
+
+    static byte[] newBatchId() {
+        byte[] id = new byte[BATCH_ID_LENGTH_BYTES];
+        random.nextBytes(id);
+        return id;
+    }
+
+    static SecretKey dataKey(@NonNull byte[] raw) {
+        return new SecretKeySpec(raw, "AES");
+    }
+
+    static List<byte[]> encryptAll(@NonNull SecretKey key, @NonNull byte[] batchId, @NonNull List<byte[]> items) throws GeneralSecurityException {
+        final Cipher cipher = CryptoCache.acquireCipher(TRANSFORMATION, CryptoCache.POOL_SOFTWARE);
+        try {
+            List<byte[]> result = new ArrayList<>(items.size());
+            for (int i = 0; i < items.size(); i++)
+                result.add(seal(cipher, key, itemData(batchId, items.size(), i), items.get(i)));
+            return result;
+        } finally {
+            CryptoCache.releaseCipher(TRANSFORMATION, CryptoCache.POOL_SOFTWARE, cipher);
+        }
+    }
+
+    /**
+     * Decrypts every item, returning the plaintexts in the same order.
+     */
+    static List<byte[]> decryptAll(@NonNull final SecretKey key, @NonNull final byte[] batchId, @NonNull final List<byte[]> items) throws GeneralSecurityException {
+        final byte[][] results = new byte[items.size()][];
+        long totalBytes = 0;
+        for (byte[] item : items)
+            totalBytes += item.length;
+
+        final int parallelism = DigitusExecutors.cryptoParallelism();
+        if (parallelism == 1 || items.size() < 2 || totalBytes < PARALLEL_THRESHOLD_BYTES) {
+            decryptRange(key, batchId, items, results, 0, items.size());
+            return Arrays.asList(results);
+        }
+
+        // Split the items into contiguous ranges, the calling thread takes the first one
+        final int chunk = (items.size() + parallelism - 1) / parallelism;
+        List<Future<Void>> futures = new ArrayList<>(parallelism);
+        for (int start = chunk; start < items.size(); start += chunk) {
+            final int from = start;
+            final int to = Math.min(items.size(), start + chunk);
+            futures.add(DigitusExecutors.crypto().submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    decryptRange(key, batchId, items, results, from, to);
+                    return null;
+                }
+            }));
+        }
+        try {
+            decryptRange(key, batchId, items, results, 0, Math.min(chunk, items.size()));
+            for (Future<Void> future : futures)
+                future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof GeneralSecurityException)
+                throw (GeneralSecurityException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            for (Future<Void> future : futures)
+                future.cancel(false);
+        }
+        return Arrays.asList(results);
+    }
+
+    private static void decryptRange(SecretKey key, byte[] batchId, List<byte[]> items, byte[][] results, int from, int to) throws GeneralSecurityException {
+        final Cipher cipher = CryptoCache.acquireCipher(TRANSFORMATION, CryptoCache.POOL_SOFTWARE);
+        try {
+            for (int i = from; i < to; i++)
+                results[i] = open(cipher, key, itemData(batchId, items.size(), i), items.get(i), 0, items.get(i).length);
+        } finally {
+            CryptoCache.releaseCipher(TRANSFORMATION, CryptoCache.POOL_SOFTWARE, cipher);
+        }
+    }
+
+    /**
+     * Encrypts plaintext with a random nonce, also authenticating the associated data.
+     *
+     * @return the nonce followed by the ciphertext.
+     */
+    static byte[] seal(@NonNull SecretKey key, @NonNull byte[] associatedData, @NonNull byte[] plaintext) throws GeneralSecurityException {
+        final Cipher cipher = CryptoCache.acquireCipher(TRANSFORMATION, CryptoCache.POOL_SOFTWARE);
+        try {
+            return seal(cipher, key, associatedData, plaintext);
+        } finally {
+            CryptoCache.releaseCipher(TRANSFORMATION, CryptoCache.POOL_SOFTWARE, cipher);
+        }
+    }
+
+    /**
+     * Decrypts a range produced by {@link #seal(SecretKey, byte[], byte[])}.
+     */
+    static byte[] open(@NonNull SecretKey key, @NonNull byte[] associatedData, @NonNull byte[] sealed, int offset, int length) throws GeneralSecurityException {
+        final Cipher cipher = CryptoCache.acquireCipher(TRANSFORMATION, CryptoCache.POOL_SOFTWARE);
+        try {
+            return open(cipher, key, associatedData, sealed, offset, length);
+        } finally {
+            CryptoCache.releaseCipher(TRANSFORMATION, CryptoCache.POOL_SOFTWARE, cipher);
+        }
+    }
+
+    private static byte[] seal(Cipher cipher, SecretKey key, byte[] associatedData, byte[] plaintext) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_LENGTH_BYTES];
+        random.nextBytes(nonce);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, nonce));
+        cipher.updateAAD(associatedData);
+        byte[] result = new byte[NONCE_LENGTH_BYTES + cipher.getOutputSize(plaintext.length)];
+        System.arraycopy(nonce, 0, result, 0, NONCE_LENGTH_BYTES);
+        int written = cipher.doFinal(plaintext, 0, plaintext.length, result, NONCE_LENGTH_BYTES);
+        return written + NONCE_LENGTH_BYTES == result.length ?
+                result : Arrays.copyOf(result, written + NONCE_LENGTH_BYTES);
+    }
+
+    private static byte[] open(Cipher cipher, SecretKey key, byte[] associatedData, byte[] sealed, int offset, int length) throws GeneralSecurityException {
+        if (length < NONCE_LENGTH_BYTES)
+            throw new GeneralSecurityException("Sealed data is too short.");
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH_BITS, sealed, offset, NONCE_LENGTH_BYTES));
+        cipher.updateAAD(associatedData);
+        return cipher.doFinal(sealed, offset + NONCE_LENGTH_BYTES, length - NONCE_LENGTH_BYTES);
+    }
+
+    /**
+     * Every item authenticates the batch ID, the item count and its own index, so items can't be
+     * reordered, dropped from the end or moved to another batch.
+     */
+    private static byte[] itemData(byte[] batchId, int count, int index) {
+        return ByteBuffer.allocate(batchId.length + 8).put(batchId).putInt(count).putInt(index).array();
+    }
+}
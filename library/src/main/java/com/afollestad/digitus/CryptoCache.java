@@ -0,0 +1,174 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.security.Key;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Process-wide cache of the JCA primitives Digitus uses. Provider lookups and key store loading
+ * happen once per process rather than on every initialization, and outlive {@link Digitus#deinit()}.
+ * Ciphers are handed out from a small pool per transformation, since a Cipher instance can only be
+ * used by one session at a time.
+ */
+final class CryptoCache {
+
+    static final String ANDROID_KEY_STORE = "AndroidKeyStore";
+    /**
+     * Pool for ciphers used with Android Key Store keys. A Cipher binds to a provider the first
+     * time it's initialized, so these can't be shared with software keys.
+     */
+    static final String POOL_KEY_STORE = "keystore";
+    /**
+     * Pool for ciphers used with in-memory keys.
+     */
+    static final String POOL_SOFTWARE = "software";
+    private static final int MAX_POOLED_CIPHERS = 4;
+
+    private static final Map<String, KeyStore> keyStores = new HashMap<>();
+    private static final Map<String, KeyGenerator> keyGenerators = new HashMap<>();
+    private static final Map<String, KeyPairGenerator> keyPairGenerators = new HashMap<>();
+    private static final ConcurrentMap<String, Key> keys = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Queue<Cipher>> cipherPools = new ConcurrentHashMap<>();
+
+    private CryptoCache() {
+    }
+
+    /**
+     * @return the key store of the given type, loaded on first access.
+     */
+    static KeyStore keyStore(@NonNull String type) {
+        synchronized (keyStores) {
+            KeyStore keyStore = keyStores.get(type);
+            if (keyStore == null) {
+                try {
+                    keyStore = KeyStore.getInstance(type);
+                } catch (KeyStoreException e) {
+                    throw new RuntimeException("Failed to get an instance of KeyStore", e);
+                }
+                try {
+                    keyStore.load(null);
+                } catch (CertificateException | IOException | NoSuchAlgorithmException e) {
+                    throw new RuntimeException("Failed to load KeyStore", e);
+                }
+                keyStores.put(type, keyStore);
+            }
+            return keyStore;
+        }
+    }
+
+    /**
+     * @return a shared key generator. It isn't thread safe, callers must synchronize on it
+     * between initializing it and generating a key.
+     */
+    static KeyGenerator keyGenerator(@NonNull String algorithm, @Nullable String provider) {
+        final String cacheKey = algorithm + "@" + provider;
+        synchronized (keyGenerators) {
+            KeyGenerator keyGenerator = keyGenerators.get(cacheKey);
+            if (keyGenerator == null) {
+                try {
+                    keyGenerator = provider != null ?
+                            KeyGenerator.getInstance(algorithm, provider) :
+                            KeyGenerator.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+                    throw new RuntimeException("Failed to get an instance of KeyGenerator", e);
+                }
+                keyGenerators.put(cacheKey, keyGenerator);
+            }
+            return keyGenerator;
+        }
+    }
+
+    /**
+     * @return a shared key pair generator, with the same locking rules as
+     * {@link #keyGenerator(String, String)}.
+     */
+    static KeyPairGenerator keyPairGenerator(@NonNull String algorithm, @Nullable String provider) {
+        final String cacheKey = algorithm + "@" + provider;
+        synchronized (keyPairGenerators) {
+            KeyPairGenerator keyPairGenerator = keyPairGenerators.get(cacheKey);
+            if (keyPairGenerator == null) {
+                try {
+                    keyPairGenerator = provider != null ?
+                            KeyPairGenerator.getInstance(algorithm, provider) :
+                            KeyPairGenerator.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+                    throw new RuntimeException("Failed to get an instance of KeyPairGenerator", e);
+                }
+                keyPairGenerators.put(cacheKey, keyPairGenerator);
+            }
+            return keyPairGenerator;
+        }
+    }
+
+    /**
+     * @return the key stored under the alias, or null if there is none. Handles are cached until
+     * {@link #evictKey(KeyStore, String)} is called for the alias.
+     */
+    @Nullable
+    static Key key(@NonNull KeyStore keyStore, @NonNull String alias) throws UnrecoverableKeyException {
+        final String cacheKey = keyStore.getType() + "/" + alias;
+        Key key = keys.get(cacheKey);
+        if (key == null) {
+            try {
+                key = keyStore.getKey(alias, null);
+            } catch (KeyStoreException | NoSuchAlgorithmException e) {
+                throw new RuntimeException("Failed to get key " + alias, e);
+            }
+            if (key != null)
+                keys.put(cacheKey, key);
+        }
+        return key;
+    }
+
+    static void evictKey(@NonNull KeyStore keyStore, @NonNull String alias) {
+        keys.remove(keyStore.getType() + "/" + alias);
+    }
+
+    /**
+     * @return a cipher for the transformation, reused from the pool if one is available. It should
+     * be given back with {@link #releaseCipher(String, String, Cipher)} when it's no longer used.
+     */
+    static Cipher acquireCipher(@NonNull String transformation, @NonNull String poolName) {
+        Queue<Cipher> pool = cipherPools.get(transformation + "@" + poolName);
+        if (pool != null) {
+            Cipher cipher = pool.poll();
+            if (cipher != null) return cipher;
+        }
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new RuntimeException("Failed to get an instance of Cipher", e);
+        }
+    }
+
+    static void releaseCipher(@NonNull String transformation, @NonNull String poolName, @Nullable Cipher cipher) {
+        if (cipher == null) return;
+        final String poolKey = transformation + "@" + poolName;
+        Queue<Cipher> pool = cipherPools.get(poolKey);
+        if (pool == null) {
+            cipherPools.putIfAbsent(poolKey, new ConcurrentLinkedQueue<Cipher>());
+            pool = cipherPools.get(poolKey);
+        }
+        if (pool.size() < MAX_POOLED_CIPHERS)
+            pool.offer(cipher);
+    }
+}
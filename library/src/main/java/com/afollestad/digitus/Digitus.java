@@ -3,14 +3,23 @@ package com.afollestad.digitus;
 import android.Manifest;
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.hardware.fingerprint.FingerprintManager;
 import android.os.Build;
 import android.provider.Settings;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.Cipher;
 
 /**
  * @author Aidan Follestad (afollestad)
@@ -18,23 +27,53 @@ import android.support.v4.content.ContextCompat;
 @SuppressWarnings("WeakerAccess")
 public class Digitus extends DigitusBase {
 
-    private static Digitus instance;
+    /**
+     * Listening mode for signing, next to the Cipher modes.
+     */
+    private static final int MODE_SIGN = -1;
+    /**
+     * The request code of sessions initialized without an Activity, which can't request the permission.
+     */
+    private static final int NO_REQUEST_CODE = Integer.MIN_VALUE;
 
     private int requestCode;
     private AuthenticationHandler authenticationHandler;
     private boolean isReady;
+    private boolean async;
+    private boolean provisioning;
+    private boolean listenWhenReady;
+    private int pendingMode;
+    private byte[] pendingIv;
+    private FutureTask<Digitus> readyFuture;
+    private long initStartNanos;
+    private boolean paused;
+    private int listenMode;
+    private byte[] listenIv;
 
     private Digitus(
-            @NonNull Activity context,
+            @NonNull Context context,
             @NonNull String keyName,
             int requestCode,
+            boolean async,
             @NonNull DigitusCallback callback) {
         super(context, keyName, callback);
         this.requestCode = requestCode;
+        this.async = async;
     }
 
+    /**
+     * @return the most recently initialized session, or null if there are none.
+     */
     public static Digitus get() {
-        return instance;
+        return SessionRegistry.current();
+    }
+
+    /**
+     * @return the session for the given key name, or null if it hasn't been initialized.
+     */
+    @Nullable
+    public static Digitus get(@NonNull String keyName) {
+        return SessionRegistry.get(keyName);
     }
 
     public static Digitus init(
@@ -42,86 +81,554 @@ public class Digitus extends DigitusBase {
             @NonNull String keyName,
             int requestCode,
             @NonNull DigitusCallback callback) {
-        if (instance != null) {
-            deinit();
+        return init(context, keyName, requestCode, false, callback);
+    }
+
+    /**
+     * Same as {@link #init(Activity, String, int, DigitusCallback)}, but keystore provisioning
+     * happens on a background thread. {@link DigitusCallback#onDigitusReady(Digitus)} is still
+     * invoked on the main thread, and {@link #getReadyFuture()} can be used to wait for it.
+     */
+    public static Digitus initAsync(
+            @NonNull Activity context,
+            @NonNull String keyName,
+            int requestCode,
+            @NonNull DigitusCallback callback) {
+        return init(context, keyName, requestCode, true, callback);
+    }
+
+    /**
+     * Initializes a session without an Activity, e.g. from a Service or a background job. The
+     * permission can't be requested from here: if it hasn't been granted, the callback receives
+     * {@link DigitusErrorType#PERMISSION_DENIED}. See {@link #requestPermission(Activity, int)}.
+     */
+    public static Digitus init(
+            @NonNull Context context,
+            @NonNull String keyName,
+            @NonNull DigitusCallback callback) {
+        return init(context, keyName, NO_REQUEST_CODE, false, callback);
+    }
+
+    /**
+     * Same as {@link #init(Context, String, DigitusCallback)}, with keystore provisioning on a
+     * background thread like {@link #initAsync(Activity, String, int, DigitusCallback)}.
+     */
+    public static Digitus initAsync(
+            @NonNull Context context,
+            @NonNull String keyName,
+            @NonNull DigitusCallback callback) {
+        return init(context, keyName, NO_REQUEST_CODE, true, callback);
+    }
+
+    /**
+     * @return whether the USE_FINGERPRINT permission is granted. It's a normal permission, so it
+     * only needs to be requested on some devices.
+     */
+    public static boolean hasPermission(@NonNull Context context) {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.M ||
+                ContextCompat.checkSelfPermission(context, Manifest.permission.USE_FINGERPRINT) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    /**
+     * Requests the USE_FINGERPRINT permission ahead of time, so that sessions initialized from a
+     * Context later on can use it. The result goes to the Activity's onRequestPermissionsResult().
+     *
+     * @return false if the permission is already granted, and nothing was requested.
+     */
+    public static boolean requestPermission(@NonNull Activity activity, int requestCode) {
+        if (hasPermission(activity)) return false;
+        ActivityCompat.requestPermissions(activity,
+                new String[]{Manifest.permission.USE_FINGERPRINT}, requestCode);
+        return true;
+    }
+
+    /**
+     * @param requestCode the code to request the permission with, or {@link #NO_REQUEST_CODE} to
+     *                    report it as denied instead, when context isn't an Activity.
+     */
+    private static Digitus init(
+            @NonNull Context context,
+            @NonNull String keyName,
+            int requestCode,
+            boolean async,
+            @NonNull DigitusCallback callback) {
+        final long initStart = Metrics.start();
+        Digitus session = SessionRegistry.get(keyName);
+        if (session != null) {
+            // Reuse the existing session and its crypto state, only rebinding it to the caller.
+            // A paused session picks up listening where it left off.
+            if (!session.paused)
+                session.stopListening();
+            session.bind(context);
+            session.requestCode = requestCode;
+            session.async = async;
+            session.setCallback(callback);
+            SessionRegistry.touch(session);
+            if (session.provisioning) {
+                // The ready callback will be delivered to the new callback once it's done
+                session.resume();
+                return session;
+            } else if (session.isReady) {
+                // The lock screen or fingerprints may have changed in Settings since it was ready
+                session.invalidateCapabilities();
+                if (session.checkCapabilities() == null) {
+                    callback.onDigitusReady(session);
+                    session.resume();
+                    return session;
+                }
+                // Provisioning again reports what changed
+                session.isReady = false;
+            }
+        } else {
+            session = new Digitus(context, keyName, requestCode, async, callback);
+            SessionRegistry.put(keyName, session);
         }
-        instance = new Digitus(context, keyName, requestCode, callback);
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            int granted = ContextCompat.checkSelfPermission(context, Manifest.permission.USE_FINGERPRINT);
-            if (granted != PackageManager.PERMISSION_GRANTED) {
-                ActivityCompat.requestPermissions(context,
-                        new String[]{Manifest.permission.USE_FINGERPRINT}, requestCode);
+        session.initStartNanos = initStart;
+        LifecycleBinder.register(context);
+        if (hasPermission(context)) {
+            session.finishInit();
+        } else if (requestCode != NO_REQUEST_CODE) {
+            requestPermission((Activity) context, requestCode);
+        } else {
+            session.dispatchError(session, DigitusError.PERMISSION_DENIED);
+        }
+        return session;
+    }
+
+    /**
+     * De-initializes the most recently initialized session.
+     */
+    public static void deinit() {
+        Digitus session = SessionRegistry.current();
+        if (session != null)
+            session.deinitSession();
+    }
+
+    /**
+     * De-initializes the session for the given key name, leaving other sessions untouched.
+     */
+    public static void deinit(@NonNull String keyName) {
+        Digitus session = SessionRegistry.get(keyName);
+        if (session != null)
+            session.deinitSession();
+    }
+
+    /**
+     * De-initializes every active session.
+     */
+    public static void deinitAll() {
+        for (Digitus session : SessionRegistry.all())
+            session.deinitSession();
+    }
+
+    /**
+     * Cleans up after sessions bound to an Activity which is being destroyed. A session is kept
+     * through a configuration change, paused and without the Activity's callback until the
+     * recreated Activity initializes it again. Otherwise it's de-initialized.
+     */
+    static void onActivityDestroyed(@NonNull Activity activity) {
+        final boolean recreating = activity.isChangingConfigurations();
+        for (Digitus session : SessionRegistry.all()) {
+            if (session.getActivity() != activity) continue;
+            if (recreating) {
+                session.pause();
+                session.unbind();
             } else {
-                finishInit();
+                session.deinitSession();
             }
-        } else finishInit();
-        return instance;
+        }
     }
 
-    public static void deinit() {
-        if (instance == null) return;
-        if (instance.authenticationHandler != null) {
-            instance.authenticationHandler.stop();
-            instance.authenticationHandler = null;
+    private void deinitSession() {
+        if (keyName == null) return;
+        SessionRegistry.remove(keyName);
+        if (authenticationHandler != null) {
+            authenticationHandler.stop();
+            authenticationHandler = null;
+        }
+        if (readyFuture != null) {
+            readyFuture.cancel(true);
+            readyFuture = null;
+        }
+        requestCode = 0;
+        provisioning = false;
+        listenWhenReady = false;
+        isReady = false;
+        paused = false;
+        listenIv = null;
+        deinitBase();
+    }
+
+    private void finishInit() {
+        if (async) {
+            provisionAsync();
+        } else {
+            deliverInitResult(provision());
         }
-        instance.requestCode = 0;
-        instance.deinitBase();
-        instance = null;
     }
 
-    private static void finishInit() {
+    /**
+     * Performs the availability checks and key generation needed before listening can start.
+     *
+     * @return the error which prevented provisioning, or null if Digitus is ready.
+     */
+    @Nullable
+    private DigitusError provision() {
+        final DigitusError error = checkCapabilities();
+        if (error != null) {
+            return error;
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && !ensureKey()) {
+            // Replacing the key would make everything encrypted with it unreadable
+            return DigitusError.KEY_MISMATCH;
+        }
+        return null;
+    }
+
+    /**
+     * @return the error which keeps the device from authenticating, or null if it can.
+     */
+    @Nullable
+    private DigitusError checkCapabilities() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            if (!instance.isFingerprintAuthAvailable()) {
-                instance.callback.onDigitusError(instance, DigitusErrorType.FINGERPRINTS_UNSUPPORTED,
-                        new Exception("Fingerprint authentication is not available to this device."));
-            } else if (instance.isFingerprintRegistered()) {
-                instance.isReady = true;
-                instance.recreateKey();
-                instance.callback.onDigitusReady(instance);
-            } else {
-                instance.callback.onDigitusError(instance, DigitusErrorType.REGISTRATION_NEEDED,
-                        new Exception("No fingerprints are registered on this device."));
+            if (!isFingerprintAuthAvailable()) {
+                return DigitusError.UNSUPPORTED;
+            } else if (!isFingerprintRegistered()) {
+                return DigitusError.REGISTRATION_NEEDED;
             }
-        } else {
-            instance.isReady = true;
-            instance.callback.onDigitusReady(instance);
+        }
+        return null;
+    }
+
+    private void provisionAsync() {
+        provisioning = true;
+        readyFuture = new FutureTask<>(new Callable<Digitus>() {
+            @Override
+            public Digitus call() throws Exception {
+                DigitusError result;
+                try {
+                    result = provision();
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Failed to provision " + keyName, e);
+                    result = DigitusError.KEY_FAILED;
+                }
+                final DigitusError error = result;
+                DigitusExecutors.postToMain(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!SessionRegistry.contains(Digitus.this) || !provisioning) return;
+                        if (readyFuture.isCancelled()) {
+                            provisioning = false;
+                        } else {
+                            deliverInitResult(error);
+                        }
+                    }
+                });
+                if (error != null)
+                    throw new Exception(error.getMessage());
+                return Digitus.this;
+            }
+        });
+        DigitusExecutors.background().execute(readyFuture);
+    }
+
+    private void deliverInitResult(@Nullable DigitusError error) {
+        provisioning = false;
+        Metrics.phase(keyName, DigitusMetrics.Phase.INIT, initStartNanos);
+        if (error != null) {
+            listenWhenReady = false;
+            dispatchError(this, error);
+            return;
+        }
+        isReady = true;
+        dispatchReady(this);
+        if (listenWhenReady) {
+            listenWhenReady = false;
+            startListening(pendingMode, pendingIv);
+            pendingIv = null;
         }
     }
 
+    /**
+     * @return a future which completes once keystore provisioning has finished, or null if this
+     * instance was not initialized with {@link #initAsync(Activity, String, int, DigitusCallback)}.
+     * Cancelling it aborts provisioning; {@link DigitusCallback#onDigitusReady(Digitus)} will not be
+     * invoked afterwards.
+     */
+    @Nullable
+    public Future<Digitus> getReadyFuture() {
+        return readyFuture;
+    }
+
     public void handleResult(int requestCode, String[] permissions, int[] state) {
         if (requestCode == this.requestCode && permissions != null &&
                 permissions[0].equals(Manifest.permission.USE_FINGERPRINT)) {
+            invalidateCapabilities();
             if (state[0] == PackageManager.PERMISSION_GRANTED) {
                 finishInit();
             } else {
-                callback.onDigitusError(this, DigitusErrorType.PERMISSION_DENIED,
-                        new Exception("USE_FINGERPRINT permission is needed in " +
-                                "your manifest, or was denied by the user."));
+                dispatchError(this, DigitusError.PERMISSION_DENIED);
             }
         }
     }
 
+    /**
+     * Starts listening for a fingerprint. Once authenticated, the unlocked cipher can be used
+     * for one call to {@link #encrypt(byte[])} (or one of its overloads).
+     */
+    public boolean startListening() {
+        return startListening(Cipher.ENCRYPT_MODE, null);
+    }
+
+    /**
+     * Starts listening for a fingerprint. Once authenticated, the unlocked cipher can be used
+     * for one call to {@link #decrypt(byte[])} (or one of its overloads).
+     *
+     * @param iv the IV returned by {@link #getIv()} when the data was encrypted.
+     */
+    public boolean startListening(@NonNull byte[] iv) {
+        return startListening(Cipher.DECRYPT_MODE, iv);
+    }
+
+    /**
+     * Starts listening for a fingerprint to encrypt with, like {@link #startListening()}, and
+     * returns a future for the result instead of reporting it only to callbacks. If listening can't
+     * be started, e.g. because the session is already listening, the future fails right away.
+     */
+    @NonNull
+    public AuthenticationFuture authenticate() {
+        return authenticate(Cipher.ENCRYPT_MODE, null);
+    }
+
+    /**
+     * Starts listening for a fingerprint to decrypt with, like {@link #startListening(byte[])}, and
+     * returns a future for the result.
+     *
+     * @param iv the IV returned by {@link #getIv()} when the data was encrypted.
+     */
+    @NonNull
+    public AuthenticationFuture authenticate(@NonNull byte[] iv) {
+        return authenticate(Cipher.DECRYPT_MODE, iv);
+    }
+
+    private AuthenticationFuture authenticate(int mode, @Nullable byte[] iv) {
+        final AuthenticationFuture future = new AuthenticationFuture(this);
+        // The future completes on the thread the event arrives on, its listeners choose their own
+        addCallback(future.observer(), DigitusExecutors.DIRECT);
+        if (!startListening(mode, iv)) {
+            // No-op if a more specific error, e.g. KEY_INVALIDATED, already failed it
+            future.fail(new DigitusException(DigitusError.NOT_STARTED));
+        }
+        return future;
+    }
+
+    /**
+     * Starts listening for a fingerprint which unlocks the key name's signing key. Once
+     * authenticated, {@link #sign()} returns a signature over the nonce for your server to check
+     * against the key from {@link #getPublicKey()}.
+     *
+     * @param nonce a challenge from your server, which must be different each time.
+     */
+    public boolean startSigning(@NonNull byte[] nonce) {
+        signingTree = null;
+        return startListening(MODE_SIGN, nonce);
+    }
+
+    /**
+     * Starts listening for a fingerprint which authorizes every payload at once. The payloads are
+     * hashed into a Merkle tree and only its root is signed, so there's a single touch and a single
+     * Key Store operation however many there are. Once authenticated, {@link #signBatch()} returns
+     * the signature along with a proof for each payload.
+     *
+     * @param items the pending payloads, each of which should carry its own nonce or sequence number.
+     */
+    public boolean startSigning(@NonNull List<byte[]> items) {
+        signingTree = new MerkleTree(items);
+        return startListening(MODE_SIGN, signingTree.root());
+    }
+
+    /**
+     * @param iv the IV to decrypt with, or the nonce when signing.
+     */
     @SuppressWarnings("ResourceType")
     @TargetApi(Build.VERSION_CODES.M)
-    public boolean startListening() {
-        if (!isFingerprintAuthAvailable()) {
+    private boolean startListening(int mode, @Nullable byte[] iv) {
+        paused = false;
+        listenMode = mode;
+        listenIv = iv;
+        if (provisioning) {
+            // Provisioning is still running in the background, start once it's done
+            listenWhenReady = !readyFuture.isCancelled();
+            pendingMode = mode;
+            pendingIv = iv;
+            return listenWhenReady;
+        } else if (!isFingerprintAuthAvailable()) {
             // Fingerprints not supported on this device
-            callback.onDigitusError(this, DigitusErrorType.FINGERPRINTS_UNSUPPORTED,
-                    new Exception("Fingerprint authentication is not available to this device."));
+            dispatchError(this, DigitusError.UNSUPPORTED);
             return false;
         } else if (authenticationHandler != null && !authenticationHandler.isReadyToStart()) {
             // Authentication handler is already listening
             return false;
+        } else if (mode == MODE_SIGN) {
+            if (!initSignature(iv)) {
+                // Any enrolled finger, including the new one, would get through without a key
+                dispatchListening(true);
+                return false;
+            }
+            dispatchListening(false);
+            authenticationHandler = new AuthenticationHandler(this, null, signature);
+            authenticationHandler.start();
+            return true;
+        } else if (AuthSessionCache.getValidity(keyName) > 0) {
+            return startSessionListening(mode, iv);
         } else {
-            callback.onDigitusListening(!initCipher());
-            authenticationHandler = new AuthenticationHandler(this,
-                    new FingerprintManager.CryptoObject(cipher));
+            if (!initCipher(mode, iv)) {
+                // An invalidated key can't back a CryptoObject until it's rotated, and the sensor
+                // would accept the new fingerprint without one. Wait for another confirmation.
+                dispatchListening(true);
+                return false;
+            }
+            dispatchListening(false);
+            authenticationHandler = new AuthenticationHandler(this, cipher, null);
             authenticationHandler.start();
             return true;
         }
     }
 
+    /**
+     * In session mode, the sensor is skipped entirely while the last authentication is still valid.
+     */
+    @SuppressWarnings("ResourceType")
+    @TargetApi(Build.VERSION_CODES.M)
+    private boolean startSessionListening(int mode, @Nullable byte[] iv) {
+        AuthSessionCache.register(context);
+        initSessionCipher(mode, iv);
+        if (AuthSessionCache.isAuthenticated(keyName) && unlockSessionCipher()) {
+            Metrics.event(keyName, DigitusMetrics.Event.AUTHENTICATED);
+            dispatchAuthenticated(this);
+            return true;
+        }
+        // Keys with a validity window aren't invalidated by new fingerprints
+        dispatchListening(false);
+        authenticationHandler = new AuthenticationHandler(this, null, null);
+        authenticationHandler.start();
+        return true;
+    }
+
+    /**
+     * Enables session mode for a key name: after a fingerprint is authenticated, the key can be
+     * used without touching the sensor again for the given number of seconds, or until the screen
+     * turns off or the app goes to the background. This must be called before the key name is
+     * initialized, since the Key Store fixes the window when the key is generated. Without a call,
+     * an existing key keeps the window it was generated with. If it differs from the existing
+     * key's, initializing fails with an error until {@link #rotateKey()} replaces the key, which
+     * makes everything encrypted with it unreadable.
+     *
+     * @param seconds how long an authentication stays valid, or 0 to require one for every use.
+     */
+    public static void setAuthenticationValidity(@NonNull String keyName, int seconds) {
+        AuthSessionCache.setValidity(keyName, seconds);
+    }
+
+    /**
+     * @return whether this session's key is in session mode, and was authenticated recently
+     * enough that {@link #startListening()} won't need the sensor.
+     */
+    public boolean isSessionAuthenticated() {
+        return keyName != null && AuthSessionCache.isAuthenticated(keyName);
+    }
+
+    /**
+     * Ends every time-windowed authentication session, so the next use needs a fingerprint.
+     */
+    public static void clearAuthenticationSessions() {
+        AuthSessionCache.evictAll();
+    }
+
+    /**
+     * Prepares everything the first session for the key name needs on a background thread:
+     * security providers, the key store, a cipher and the handle of an existing key. Call it early,
+     * e.g. from {@link android.app.Application#onCreate()}, so the first prompt doesn't wait for
+     * them. Keys are only ever created when a session is initialized.
+     *
+     * @return a future which completes once prewarming is done. Failures are ignored, the
+     * session handles them when it's initialized.
+     */
+    @NonNull
+    public static Future<?> prewarm(@NonNull Context context, @NonNull final String keyName) {
+        return DigitusExecutors.background().submit(new Runnable() {
+            @Override
+            public void run() {
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return;
+                try {
+                    MUtils.prewarm(keyName);
+                } catch (RuntimeException e) {
+                    // Not fatal, the session runs into the same failure and reports it when it's initialized
+                    Log.w(TAG, "Failed to prewarm " + keyName, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces the fingerprint hardware for sessions initialized afterwards, e.g. with the
+     * FakeFingerprintSensor from digitus-testing in tests. Pass null to go back to the device's sensor.
+     */
+    public static void setFingerprintSensor(@Nullable FingerprintSensor sensor) {
+        sensorOverride = sensor;
+    }
+
+    /**
+     * Installs a sink for timings and events from every session, e.g. a
+     * {@link DigitusMetricsRecorder}. Pass null to stop recording.
+     */
+    public static void setMetrics(@Nullable DigitusMetrics metrics) {
+        Metrics.setSink(metrics);
+    }
+
+    /**
+     * @return whether the sensor is currently listening for a fingerprint.
+     */
+    public boolean isListening() {
+        return authenticationHandler != null && !authenticationHandler.isReadyToStart();
+    }
+
+    /**
+     * Stops the sensor, but keeps the session and its crypto state so that {@link #resume()} can
+     * start listening again for the same operation. Use this in {@code onPause()} instead of
+     * de-initializing, so a rotation or a trip to the recent apps screen doesn't rebuild the session.
+     */
+    public void pause() {
+        if (paused) return;
+        if (listenWhenReady) {
+            // Still provisioning, don't start once it's done
+            listenWhenReady = false;
+            paused = true;
+        } else if (isListening()) {
+            authenticationHandler.stop();
+            paused = true;
+        }
+    }
+
+    /**
+     * Starts listening again if the session was listening when it was paused. Initializing the
+     * key name again resumes the session as well.
+     *
+     * @return whether listening was resumed.
+     */
+    public boolean resume() {
+        if (!paused) return false;
+        // Coming back from Settings, the lock screen or fingerprints may have changed
+        invalidateCapabilities();
+        return startListening(listenMode, listenIv);
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
     public boolean stopListening() {
+        listenWhenReady = false;
+        paused = false;
         if (authenticationHandler != null) {
             authenticationHandler.stop();
             return true;
@@ -129,24 +636,49 @@ public class Digitus extends DigitusBase {
         return false;
     }
 
+    /**
+     * Replaces the fingerprint key with a newly generated one. Keys are reused between
+     * initializations, so this should be called once the user has confirmed their identity
+     * after {@link DigitusCallback#onDigitusListening(boolean)} reported a new fingerprint.
+     * <p>
+     * Everything encrypted with the old key becomes unreadable, including sealed batches and
+     * streams. A {@link DigitusVault} which is still unlocked can be kept with
+     * {@link DigitusVault#rewrap(Digitus)}.
+     *
+     * @return false if the session was de-initialized, or there's no key before Marshmallow.
+     */
+    public boolean rotateKey() {
+        if (keyName == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return false;
+        recreateKey();
+        return true;
+    }
+
     public boolean openSecuritySettings() {
         if (context == null) return false;
-        context.startActivity(new Intent(Settings.ACTION_SECURITY_SETTINGS));
+        // Enrollment and the lock screen are likely to change before the user comes back
+        invalidateCapabilities();
+        final Intent intent = new Intent(Settings.ACTION_SECURITY_SETTINGS);
+        final Activity activity = getActivity();
+        if (activity != null) {
+            activity.startActivity(intent);
+        } else {
+            // Sessions initialized from a Service or the Application have no task to start it in
+            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            context.startActivity(intent);
+        }
         return true;
     }
 
     public boolean isReady() {
-        return instance != null && instance.isReady;
+        return isReady && SessionRegistry.contains(this);
     }
 
     @TargetApi(Build.VERSION_CODES.M)
     public boolean isFingerprintRegistered() {
-        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M &&
-                MUtils.isFingerprintRegistered(this);
+        return getCapabilities().isFingerprintRegistered();
     }
 
     public boolean isFingerprintAuthAvailable() {
-        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M &&
-                MUtils.isFingerprintAuthAvailable(this);
+        return getCapabilities().isFingerprintAuthAvailable();
     }
 }
@@ -4,102 +4,597 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.KeyguardManager;
 import android.content.Context;
-import android.hardware.fingerprint.FingerprintManager;
 import android.os.Build;
-import android.security.keystore.KeyGenParameterSpec;
-import android.security.keystore.KeyProperties;
+import android.os.Handler;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
 import android.view.inputmethod.InputMethodManager;
 
-import java.io.IOException;
-import java.security.InvalidAlgorithmParameterException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
-import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
 
 /**
  * @author Aidan Follestad (afollestad)
  */
 class DigitusBase {
 
-    DigitusBase(@NonNull Activity context, @NonNull String keyName, @NonNull DigitusCallback callback) {
-        this.context = context;
+    static final String TAG = "[DIGITUS]";
+
+    DigitusBase(@NonNull Context context, @NonNull String keyName, @NonNull DigitusCallback callback) {
+        bind(context);
         this.keyName = keyName;
         this.callback = callback;
+        this.subscribers = new Subscriber[]{new Subscriber(callback, null)};
 
-        inputMethodManager = (InputMethodManager) context.getSystemService(Context.INPUT_METHOD_SERVICE);
+        inputMethodManager = (InputMethodManager) this.context.getSystemService(Context.INPUT_METHOD_SERVICE);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
-            MUtils.initBase(context, this);
+            MUtils.initBase(this.context, this);
+    }
+
+    /**
+     * Binds the session to the component initializing it. Only the application context is held
+     * strongly, since sessions outlive the Activities they're initialized from.
+     */
+    void bind(@NonNull Context context) {
+        this.context = context.getApplicationContext();
+        activity = context instanceof Activity ? new WeakReference<>((Activity) context) : null;
+    }
+
+    /**
+     * Detaches the session from its Activity when it's destroyed for a configuration change.
+     * The callback passed to init() is dropped too, it's usually the Activity or one of its
+     * members. The recreated Activity binds again when it initializes the key name.
+     */
+    void unbind() {
+        activity = null;
+        synchronized (callbackLock) {
+            if (callback != null)
+                removeCallback(callback);
+        }
+    }
+
+    /**
+     * @return the Activity the session was last initialized from, or null if there's none or
+     * it has been garbage collected.
+     */
+    @Nullable
+    Activity getActivity() {
+        final WeakReference<Activity> ref = activity;
+        return ref != null ? ref.get() : null;
     }
 
     void deinitBase() {
+        // The key store and key generator are shared through CryptoCache, only the cipher
+        // goes back to its pool
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+            MUtils.deinitBase(this);
         keyName = null;
         context = null;
+        activity = null;
         keyguardManager = null;
-        fingerprintManager = null;
+        sensor = null;
+        capabilities = null;
         keyStore = null;
         keyGenerator = null;
         cipher = null;
+        cipherIv = null;
+        authenticatedCipher = null;
+        signature = null;
+        signingNonce = null;
+        signingTree = null;
+        authenticatedSignature = null;
+        sensorHandler = null;
+        final Subscriber[] closing;
+        synchronized (callbackLock) {
+            closing = subscribers;
+            callback = null;
+            subscribers = NO_SUBSCRIBERS;
+        }
+        // Pending authenticate() calls would otherwise never complete
+        for (Subscriber subscriber : closing) {
+            if (subscriber.callback instanceof AuthenticationFuture.Observer)
+                ((AuthenticationFuture.Observer) subscriber.callback).future().onSessionClosed();
+        }
     }
 
     String keyName;
+    /**
+     * The application context.
+     */
     Context context;
+    private WeakReference<Activity> activity;
     KeyguardManager keyguardManager;
-    FingerprintManager fingerprintManager;
+    FingerprintSensor sensor;
     InputMethodManager inputMethodManager;
     KeyStore keyStore;
     KeyGenerator keyGenerator;
     Cipher cipher;
+    int cipherMode;
+    byte[] cipherIv;
+    volatile Cipher authenticatedCipher;
+    /**
+     * Created the first time the session signs.
+     */
+    Signature signature;
+    byte[] signingNonce;
+    /**
+     * The tree whose root is being signed, when signing a batch.
+     */
+    MerkleTree signingTree;
+    volatile Signature authenticatedSignature;
+    /**
+     * The last capability snapshot, or null if a new one needs to be taken.
+     */
+    private volatile DigitusCapabilities capabilities;
+    /**
+     * Replaces the device's sensor for new sessions, see Digitus#setFingerprintSensor.
+     */
+    static volatile FingerprintSensor sensorOverride;
+    /**
+     * The handler sensor callbacks run on, or null for the main thread.
+     */
+    Handler sensorHandler;
+
+    private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+    private final Object callbackLock = new Object();
+    /**
+     * The callback passed to init(), which is replaced when the session is initialized again.
+     */
     DigitusCallback callback;
+    /**
+     * Every subscribed callback. Replaced as a whole on each change, so dispatching just reads the
+     * current array without locking or allocating.
+     */
+    private volatile Subscriber[] subscribers = NO_SUBSCRIBERS;
 
+    private static final class Subscriber {
+
+        final DigitusCallback callback;
+        /**
+         * Null to deliver on the main thread.
+         */
+        final Executor executor;
+
+        Subscriber(DigitusCallback callback, Executor executor) {
+            this.callback = callback;
+            this.executor = executor;
+        }
+
+        /**
+         * @return whether events can be delivered on the current thread without a hop.
+         */
+        boolean isInline() {
+            return executor == null && DigitusExecutors.isMainThread();
+        }
+
+        void post(Runnable runnable) {
+            if (executor != null) {
+                executor.execute(runnable);
+            } else {
+                DigitusExecutors.postToMain(runnable);
+            }
+        }
+    }
+
+    /**
+     * Replaces the callback this session was initialized with. Callbacks added with
+     * {@link #addCallback(DigitusCallback)} keep receiving events.
+     */
     public void setCallback(@NonNull DigitusCallback callback) {
-        this.callback = callback;
+        synchronized (callbackLock) {
+            if (this.callback != null)
+                removeCallback(this.callback);
+            this.callback = callback;
+            addCallback(callback);
+        }
+    }
+
+    /**
+     * Subscribes another callback to this session's events, e.g. a dialog or an analytics hook.
+     * Events are delivered on the main thread. Adding a callback which is already subscribed has
+     * no effect.
+     */
+    public void addCallback(@NonNull DigitusCallback callback) {
+        addCallback(callback, null);
+    }
+
+    /**
+     * Same as {@link #addCallback(DigitusCallback)}, but events are delivered through the given
+     * executor. This lets work that follows an authentication, like decrypting, stay off of the
+     * main thread.
+     *
+     * @param executor the executor to deliver events with, or null for the main thread.
+     */
+    public void addCallback(@NonNull DigitusCallback callback, @Nullable Executor executor) {
+        synchronized (callbackLock) {
+            final Subscriber[] current = subscribers;
+            for (Subscriber existing : current) {
+                if (existing.callback == callback) return;
+            }
+            final Subscriber[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = new Subscriber(callback, executor);
+            subscribers = updated;
+        }
+    }
+
+    public void removeCallback(@NonNull DigitusCallback callback) {
+        synchronized (callbackLock) {
+            final Subscriber[] current = subscribers;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].callback != callback) continue;
+                final Subscriber[] updated = new Subscriber[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, updated.length - i);
+                subscribers = updated;
+                if (this.callback == callback)
+                    this.callback = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sets the handler that fingerprint sensor callbacks run on, e.g. one backed by a
+     * {@link android.os.HandlerThread}. Takes effect the next time listening starts.
+     *
+     * @param handler the handler to use, or null for the main thread.
+     */
+    public void setSensorHandler(@Nullable Handler handler) {
+        sensorHandler = handler;
+    }
+
+    // Event dispatch
+
+    void dispatchReady(@NonNull final Digitus digitus) {
+        for (final Subscriber subscriber : subscribers) {
+            if (subscriber.isInline()) {
+                subscriber.callback.onDigitusReady(digitus);
+            } else {
+                subscriber.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        subscriber.callback.onDigitusReady(digitus);
+                    }
+                });
+            }
+        }
+    }
+
+    void dispatchListening(final boolean newFingerprint) {
+        for (final Subscriber subscriber : subscribers) {
+            if (subscriber.isInline()) {
+                subscriber.callback.onDigitusListening(newFingerprint);
+            } else {
+                subscriber.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        subscriber.callback.onDigitusListening(newFingerprint);
+                    }
+                });
+            }
+        }
+    }
+
+    void dispatchAuthenticated(@NonNull final Digitus digitus) {
+        for (final Subscriber subscriber : subscribers) {
+            if (subscriber.isInline()) {
+                subscriber.callback.onDigitusAuthenticated(digitus);
+            } else {
+                subscriber.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        subscriber.callback.onDigitusAuthenticated(digitus);
+                    }
+                });
+            }
+        }
+    }
+
+    void dispatchError(@NonNull final Digitus digitus, @NonNull final DigitusError error) {
+        for (final Subscriber subscriber : subscribers) {
+            if (subscriber.isInline()) {
+                subscriber.callback.onDigitusError(digitus, error);
+            } else {
+                subscriber.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        subscriber.callback.onDigitusError(digitus, error);
+                    }
+                });
+            }
+        }
     }
 
     /**
-     * Initialize the {@link Cipher} instance with the created key in the {@link #recreateKey()}
-     * method.
+     * @return what the device supports for fingerprint authentication. The snapshot is kept
+     * until something relevant may have changed, so this is usually just a field read.
+     */
+    @NonNull
+    public DigitusCapabilities getCapabilities() {
+        DigitusCapabilities snapshot = capabilities;
+        if (snapshot == null) {
+            snapshot = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && context != null ?
+                    MUtils.queryCapabilities(this) : DigitusCapabilities.UNSUPPORTED;
+            capabilities = snapshot;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Discards the capability snapshot, the next check takes a new one. Digitus does this itself
+     * after a permission result, a trip to the security settings, when the key is invalidated,
+     * and when a session is resumed or initialized again.
+     */
+    public void invalidateCapabilities() {
+        capabilities = null;
+    }
+
+    /**
+     * Initialize the {@link Cipher} instance with the key created or reused by {@link #ensureKey()}.
      *
      * @return {@code true} if initialization is successful, {@code false} if the lock screen has
      * been disabled or reset after the key was generated, or if a fingerprint got enrolled after
      * the key was generated.
      */
-    boolean initCipher() {
+    boolean initCipher(int mode, @Nullable byte[] iv) {
+        authenticatedCipher = null;
+        cipherMode = mode;
+        cipherIv = iv;
+        final long start = Metrics.start();
         try {
-            return MUtils.initCipher(this);
+            final boolean initialized = MUtils.initCipher(this, mode, iv);
+            // The key is invalidated when fingerprints or the lock screen change
+            if (!initialized)
+                invalidateCapabilities();
+            return initialized;
         } catch (RuntimeException e) {
-            e.printStackTrace();
+            Log.w(TAG, "Failed to initialize the cipher for " + keyName, e);
             return false;
+        } finally {
+            Metrics.phase(keyName, DigitusMetrics.Phase.CIPHER_INIT, start);
         }
     }
 
     /**
-     * Creates a symmetric key in the Android Key Store which can only be used after the user has
-     * authenticated with fingerprint.
+     * In session mode the cipher can't be initialized until the user has authenticated, this
+     * unlocks it for the mode and IV given to the last {@link #initSessionCipher(int, byte[])} call.
+     *
+     * @return {@code false} if the session has expired, in which case it's evicted.
      */
-    @SuppressLint("NewApi")
-    final void recreateKey() {
-        // The enrolling flow for fingerprint. This is where you ask the user to set up fingerprint
-        // for your flow. Use of keys is necessary if you need to know if the set of
-        // enrolled fingerprints has changed.
+    boolean unlockSessionCipher() {
+        authenticatedCipher = null;
+        final long start = Metrics.start();
+        try {
+            if (MUtils.initSessionCipher(this)) {
+                authenticatedCipher = cipher;
+                return true;
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to unlock the session cipher for " + keyName, e);
+        } finally {
+            Metrics.phase(keyName, DigitusMetrics.Phase.CIPHER_INIT, start);
+        }
+        AuthSessionCache.evict(keyName);
+        return false;
+    }
+
+    /**
+     * Initializes the signature for the nonce, creating the signing key pair if it doesn't exist.
+     *
+     * @return {@code false} if the key pair was invalidated, like {@link #initCipher(int, byte[])}.
+     */
+    boolean initSignature(@NonNull byte[] nonce) {
+        authenticatedCipher = null;
+        authenticatedSignature = null;
+        signingNonce = nonce;
+        final long start = Metrics.start();
         try {
-            keyStore.load(null);
-            // Set the alias of the entry in Android KeyStore where the key will appear
-            // and the constrains (purposes) in the constructor of the Builder
-            keyGenerator.init(new KeyGenParameterSpec.Builder(keyName,
-                    KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
-                    .setBlockModes(KeyProperties.BLOCK_MODE_CBC)
-                    // Require the user to authenticate with a fingerprint to authorize every use
-                    // of the key
-                    .setUserAuthenticationRequired(true)
-                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_PKCS7)
-                    .build());
-            keyGenerator.generateKey();
-        } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException | CertificateException | IOException e) {
-            throw new RuntimeException(e);
+            final boolean initialized = MUtils.initSignature(this);
+            if (!initialized)
+                invalidateCapabilities();
+            return initialized;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to initialize the signature for " + keyName, e);
+            return false;
+        } finally {
+            Metrics.phase(keyName, DigitusMetrics.Phase.CIPHER_INIT, start);
         }
     }
+
+    void initSessionCipher(int mode, @Nullable byte[] iv) {
+        authenticatedCipher = null;
+        cipherMode = mode;
+        cipherIv = iv;
+    }
+
+    /**
+     * @return the IV generated for the current encryption, which must be stored alongside the
+     * encrypted data and passed to {@link Digitus#startListening(byte[])} to decrypt it later.
+     * Null unless listening was started for encryption.
+     */
+    @Nullable
+    public byte[] getIv() {
+        return cipher != null && cipherMode == Cipher.ENCRYPT_MODE ? cipher.getIV() : null;
+    }
+
+    /**
+     * @return whether a fingerprint was authenticated, and the cipher it unlocked hasn't been used yet.
+     */
+    public boolean isCipherAuthenticated() {
+        return authenticatedCipher != null;
+    }
+
+    /**
+     * Encrypts data with the cipher unlocked by the last successful authentication. Each
+     * authentication unlocks a single operation, the IV from {@link #getIv()} is needed to decrypt.
+     */
+    public byte[] encrypt(@NonNull byte[] input) throws GeneralSecurityException {
+        return finish(authenticatedCipher(Cipher.ENCRYPT_MODE).doFinal(input));
+    }
+
+    /**
+     * Decrypts data with the cipher unlocked by the last successful authentication, which must
+     * have been started with {@link Digitus#startListening(byte[])}.
+     */
+    public byte[] decrypt(@NonNull byte[] input) throws GeneralSecurityException {
+        return finish(authenticatedCipher(Cipher.DECRYPT_MODE).doFinal(input));
+    }
+
+    /**
+     * Encrypts the remaining bytes of input into output. This is a single Key Store operation like
+     * {@link #encrypt(byte[])}, use the stream form for large payloads.
+     *
+     * @return the number of bytes written to output.
+     */
+    public int encrypt(@NonNull ByteBuffer input, @NonNull ByteBuffer output) throws GeneralSecurityException {
+        return finish(authenticatedCipher(Cipher.ENCRYPT_MODE).doFinal(input, output));
+    }
+
+    /**
+     * Decrypts the remaining bytes of input into output. GCM holds back all of the plaintext until
+     * the tag is verified, so this takes as much memory as {@link #decrypt(byte[])}.
+     *
+     * @return the number of bytes written to output.
+     */
+    public int decrypt(@NonNull ByteBuffer input, @NonNull ByteBuffer output) throws GeneralSecurityException {
+        return finish(authenticatedCipher(Cipher.DECRYPT_MODE).doFinal(input, output));
+    }
+
+    /**
+     * @return a stream which encrypts everything written to it into out, in separately
+     * authenticated chunks under a random data key. Only that key goes through the Key Store. The
+     * encryption is finished when the returned stream is closed.
+     */
+    public OutputStream encrypt(@NonNull OutputStream out) throws GeneralSecurityException {
+        return finish(StreamCrypto.encrypt(out, authenticatedCipher(Cipher.ENCRYPT_MODE)));
+    }
+
+    /**
+     * @return a stream which decrypts data written by {@link #encrypt(OutputStream)} as it's read,
+     * only holding one chunk in memory at a time. Tampering or truncation is reported with an
+     * IOException once the affected chunk is reached.
+     */
+    public InputStream decrypt(@NonNull InputStream in) {
+        return finish(StreamCrypto.decrypt(in, authenticatedCipher(Cipher.DECRYPT_MODE)));
+    }
+
+    /**
+     * Encrypts all of the items with the cipher unlocked by the last successful authentication,
+     * using it only once to protect a random data key for the whole batch.
+     */
+    public SealedBatch encryptBatch(@NonNull List<byte[]> items) throws GeneralSecurityException {
+        final byte[] iv = getIv();
+        final SecretKey dataKey = BatchCrypto.newDataKey();
+        final byte[] wrappedKey = encrypt(dataKey.getEncoded());
+        final byte[] batchId = BatchCrypto.newBatchId();
+        return new SealedBatch(iv, wrappedKey, batchId, BatchCrypto.encryptAll(dataKey, batchId, items));
+    }
+
+    /**
+     * Decrypts every item of the batch with a single authentication, which must have been started
+     * with {@link Digitus#startListening(byte[])} and {@link SealedBatch#getIv()}.
+     *
+     * @return the decrypted items, in the same order they were encrypted.
+     */
+    public List<byte[]> decryptBatch(@NonNull SealedBatch batch) throws GeneralSecurityException {
+        final byte[] rawKey = decrypt(batch.getWrappedKey());
+        try {
+            return BatchCrypto.decryptAll(BatchCrypto.dataKey(rawKey), batch.getBatchId(), batch.getItems());
+        } finally {
+            Arrays.fill(rawKey, (byte) 0);
+        }
+    }
+
+    /**
+     * Signs the nonce passed to {@link Digitus#startSigning(byte[])} with the private key unlocked
+     * by the last successful authentication. Each authentication unlocks a single signature.
+     *
+     * @return an ASN.1 DER encoded ECDSA signature, which {@link SignatureVerifier} can check.
+     */
+    public byte[] sign() throws GeneralSecurityException {
+        if (signingTree != null)
+            throw new IllegalStateException("Signing was started for a batch, use signBatch() instead.");
+        return sign(SignatureVerifier.nonceMessage(signingNonce));
+    }
+
+    /**
+     * Signs the batch passed to {@link Digitus#startSigning(List)} with the private key unlocked by
+     * the last successful authentication, a single signature for all of its items.
+     */
+    public SignedBatch signBatch() throws GeneralSecurityException {
+        final MerkleTree tree = signingTree;
+        if (tree == null)
+            throw new IllegalStateException("Signing was started for a single nonce, use sign() instead.");
+        return new SignedBatch(tree, sign(SignatureVerifier.batchMessage(tree.root(), tree.size())));
+    }
+
+    private byte[] sign(byte[] message) throws GeneralSecurityException {
+        final Signature signature = authenticatedSignature;
+        if (signature == null)
+            throw new IllegalStateException("No authenticated signature is available, use startSigning() and authenticate a fingerprint first.");
+        authenticatedSignature = null;
+        signature.update(message);
+        return signature.sign();
+    }
+
+    /**
+     * @return the public half of this key name's signing key pair, which is created if it doesn't
+     * exist yet. Send {@link PublicKey#getEncoded()} to your server once to enroll the device.
+     * Null before Marshmallow.
+     */
+    @Nullable
+    public PublicKey getPublicKey() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return null;
+        return MUtils.getPublicKey(this);
+    }
+
+    private Cipher authenticatedCipher(int mode) {
+        if (authenticatedCipher == null)
+            throw new IllegalStateException("No authenticated cipher is available, a fingerprint must be authenticated first.");
+        else if (cipherMode != mode)
+            throw new IllegalStateException(mode == Cipher.ENCRYPT_MODE ?
+                    "Listening was started for decryption, use startListening() to encrypt." :
+                    "Listening was started for encryption, use startListening(byte[]) to decrypt.");
+        return authenticatedCipher;
+    }
+
+    private <T> T finish(T result) {
+        // The authentication only covers a single operation
+        authenticatedCipher = null;
+        return result;
+    }
+
+    /**
+     * Makes sure the key used by {@link #initCipher(int, byte[])} exists, reusing it if it was
+     * created previously. A key that was permanently invalidated is left in place so that
+     * {@link #initCipher(int, byte[])} can report it; use {@link #recreateKey()} to replace it.
+     *
+     * @return false if the existing key has another authentication validity than the configured one.
+     */
+    @SuppressLint("NewApi")
+    final boolean ensureKey() {
+        return KeyManager.ensureKey(this);
+    }
+
+    /**
+     * Replaces the key in the Android Key Store with a newly generated one.
+     */
+    @SuppressLint("NewApi")
+    final void recreateKey() {
+        KeyManager.rotateKey(this);
+    }
 }
@@ -11,5 +11,5 @@ public interface DigitusCallback {
 
     void onDigitusAuthenticated(Digitus digitus);
 
-    void onDigitusError(Digitus digitus, DigitusErrorType type, Exception e);
+    void onDigitusError(Digitus digitus, DigitusError error);
 }
\ No newline at end of file
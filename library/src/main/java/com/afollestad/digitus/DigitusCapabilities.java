@@ -0,0 +1,68 @@
+package com.afollestad.digitus;
+
+/**
+ * An immutable snapshot of what the device supports for fingerprint authentication. Taking one
+ * costs several system calls, so sessions keep theirs and only take a new one when something
+ * relevant may have changed: a permission result, a trip to the security settings, or an
+ * invalidated key.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public final class DigitusCapabilities {
+
+    /**
+     * The snapshot for devices below Marshmallow, which have no fingerprint API.
+     */
+    static final DigitusCapabilities UNSUPPORTED = new DigitusCapabilities(false, false, false, false);
+
+    private final boolean permissionGranted;
+    private final boolean hardwareDetected;
+    private final boolean keyguardSecure;
+    private final boolean fingerprintsEnrolled;
+
+    DigitusCapabilities(boolean permissionGranted, boolean hardwareDetected,
+                        boolean keyguardSecure, boolean fingerprintsEnrolled) {
+        this.permissionGranted = permissionGranted;
+        this.hardwareDetected = hardwareDetected;
+        this.keyguardSecure = keyguardSecure;
+        this.fingerprintsEnrolled = fingerprintsEnrolled;
+    }
+
+    public boolean isPermissionGranted() {
+        return permissionGranted;
+    }
+
+    public boolean isHardwareDetected() {
+        return hardwareDetected;
+    }
+
+    public boolean isKeyguardSecure() {
+        return keyguardSecure;
+    }
+
+    public boolean hasEnrolledFingerprints() {
+        return fingerprintsEnrolled;
+    }
+
+    /**
+     * @return whether the device has API and hardware support, and the permission was granted.
+     */
+    public boolean isFingerprintAuthAvailable() {
+        return permissionGranted && hardwareDetected;
+    }
+
+    /**
+     * @return whether fingerprints are available, and at least one is enrolled.
+     */
+    public boolean isFingerprintRegistered() {
+        return isFingerprintAuthAvailable() && keyguardSecure && fingerprintsEnrolled;
+    }
+
+    @Override
+    public String toString() {
+        return "DigitusCapabilities{permissionGranted=" + permissionGranted +
+                ", hardwareDetected=" + hardwareDetected +
+                ", keyguardSecure=" + keyguardSecure +
+                ", fingerprintsEnrolled=" + fingerprintsEnrolled + "}";
+    }
+}
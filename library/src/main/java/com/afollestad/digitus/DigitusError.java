@@ -0,0 +1,102 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+import android.util.SparseArray;
+
+/**
+ * Describes an error passed to {@link DigitusCallback#onDigitusError(Digitus, DigitusError)}.
+ * Errors are immutable and shared, so help events which fire repeatedly don't allocate.
+ *
+ * @author Aidan Follestad (afollestad)
+ */
+public final class DigitusError {
+
+    /**
+     * The code of errors which don't come from the fingerprint framework.
+     */
+    public static final int NO_CODE = -1;
+
+    static final DigitusError NOT_RECOGNIZED = new DigitusError(
+            DigitusErrorType.FINGERPRINT_NOT_RECOGNIZED, NO_CODE, "Fingerprint not recognized, try again.");
+    static final DigitusError UNSUPPORTED = new DigitusError(
+            DigitusErrorType.FINGERPRINTS_UNSUPPORTED, NO_CODE, "Fingerprint authentication is not available to this device.");
+    static final DigitusError REGISTRATION_NEEDED = new DigitusError(
+            DigitusErrorType.REGISTRATION_NEEDED, NO_CODE, "No fingerprints are registered on this device.");
+    static final DigitusError PERMISSION_DENIED = new DigitusError(
+            DigitusErrorType.PERMISSION_DENIED, NO_CODE, "USE_FINGERPRINT permission is needed in your manifest, or was denied by the user.");
+    static final DigitusError KEY_FAILED = new DigitusError(
+            DigitusErrorType.UNRECOVERABLE_ERROR, NO_CODE, "The fingerprint key couldn't be created or unlocked.");
+    static final DigitusError KEY_INVALIDATED = new DigitusError(
+            DigitusErrorType.UNRECOVERABLE_ERROR, NO_CODE, "A new fingerprint was enrolled, the key needs to be rotated.");
+    static final DigitusError KEY_MISMATCH = new DigitusError(
+            DigitusErrorType.UNRECOVERABLE_ERROR, NO_CODE, "The key was generated with another authentication validity, rotate it to change the validity.");
+    static final DigitusError NOT_STARTED = new DigitusError(
+            DigitusErrorType.UNRECOVERABLE_ERROR, NO_CODE, "Listening couldn't be started, the session is already listening or was de-initialized.");
+
+    private static final SparseArray<DigitusError> helpErrors = new SparseArray<>();
+    private static final SparseArray<DigitusError> frameworkErrors = new SparseArray<>();
+
+    private final DigitusErrorType type;
+    private final int code;
+    private final String message;
+
+    private DigitusError(@NonNull DigitusErrorType type, int code, @NonNull String message) {
+        this.type = type;
+        this.code = code;
+        this.message = message;
+    }
+
+    /**
+     * @return a shared error for a FingerprintManager help event.
+     */
+    @NonNull
+    static DigitusError help(int helpCode, @NonNull CharSequence helpString) {
+        return lookup(helpErrors, DigitusErrorType.HELP_ERROR, helpCode, helpString);
+    }
+
+    /**
+     * @return a shared error for a FingerprintManager error event.
+     */
+    @NonNull
+    static DigitusError framework(int errorCode, @NonNull CharSequence errString) {
+        return lookup(frameworkErrors, DigitusErrorType.UNRECOVERABLE_ERROR, errorCode, errString);
+    }
+
+    private static DigitusError lookup(SparseArray<DigitusError> cache, DigitusErrorType type, int code, CharSequence message) {
+        synchronized (cache) {
+            DigitusError error = cache.get(code);
+            // The message only changes if the locale does
+            if (error == null || !TextUtils.equals(error.message, message)) {
+                error = new DigitusError(type, code, message.toString());
+                cache.put(code, error);
+            }
+            return error;
+        }
+    }
+
+    @NonNull
+    public DigitusErrorType getType() {
+        return type;
+    }
+
+    /**
+     * @return the FingerprintManager error or help code, or {@link #NO_CODE}.
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @return a human readable message describing the error.
+     */
+    @NonNull
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return type + " (" + code + "): " + message;
+    }
+}
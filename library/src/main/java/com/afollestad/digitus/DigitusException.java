@@ -0,0 +1,33 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.NonNull;
+
+/**
+ * The failure of an {@link AuthenticationFuture}, carrying the {@link DigitusError} that ended it.
+ */
+public class DigitusException extends Exception {
+
+    private final DigitusError error;
+
+    public DigitusException(@NonNull DigitusError error) {
+        super(error.getMessage());
+        this.error = error;
+    }
+
+    @NonNull
+    public DigitusError getError() {
+        return error;
+    }
+
+    @NonNull
+    public DigitusErrorType getType() {
+        return error.getType();
+    }
+
+    /**
+     * @return the FingerprintManager error code, or {@link DigitusError#NO_CODE}.
+     */
+    public int getCode() {
+        return error.getCode();
+    }
+}
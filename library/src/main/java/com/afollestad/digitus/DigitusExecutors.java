@@ -0,0 +1,98 @@
+package com.afollestad.digitus;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shared threads used by Digitus to keep keystore work off of the main thread.
+ */
+final class DigitusExecutors {
+
+    private static final int MAX_CRYPTO_THREADS = 4;
+
+    private static ExecutorService background;
+    private static ExecutorService crypto;
+    private static ExecutorService vault;
+    private static Handler mainHandler;
+
+    private DigitusExecutors() {
+    }
+
+    static synchronized ExecutorService background() {
+        if (background == null)
+            background = Executors.newSingleThreadExecutor(newThreadFactory("Digitus-Background", true));
+        return background;
+    }
+
+    /**
+     * @return a thread for vault compaction, kept apart from {@link #background()} so that a large
+     * compaction doesn't hold up session provisioning.
+     */
+    static synchronized ExecutorService vault() {
+        if (vault == null)
+            vault = Executors.newSingleThreadExecutor(newThreadFactory("Digitus-Vault", true));
+        return vault;
+    }
+
+    /**
+     * @return a pool used to spread bulk cipher work across cores.
+     */
+    static synchronized ExecutorService crypto() {
+        if (crypto == null)
+            crypto = Executors.newFixedThreadPool(cryptoParallelism(), newThreadFactory("Digitus-Crypto", false));
+        return crypto;
+    }
+
+    static int cryptoParallelism() {
+        return Math.max(1, Math.min(MAX_CRYPTO_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    private static ThreadFactory newThreadFactory(final String name, final boolean lowPriority) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (lowPriority)
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Runs tasks right away on the calling thread.
+     */
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    static synchronized Handler main() {
+        if (mainHandler == null)
+            mainHandler = new Handler(Looper.getMainLooper());
+        return mainHandler;
+    }
+
+    static boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    static void postToMain(Runnable runnable) {
+        main().post(runnable);
+    }
+}
@@ -0,0 +1,58 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Receives timings and events from the authentication pipeline. Install one with
+ * {@link Digitus#setMetrics(DigitusMetrics)}; {@link DigitusMetricsRecorder} is a ready to use
+ * implementation. Methods may be called from any thread and should return quickly.
+ */
+public interface DigitusMetrics {
+
+    enum Phase {
+        /**
+         * Initialization, from init() to the ready callback (or an error).
+         */
+        INIT,
+        /**
+         * Looking up the Android Key Store, key generator and cipher for a session.
+         */
+        PROVIDER_LOOKUP,
+        /**
+         * Generating the fingerprint key.
+         */
+        KEY_GENERATION,
+        /**
+         * Initializing the cipher before listening, or after authentication in session mode.
+         */
+        CIPHER_INIT,
+        /**
+         * From listening until the first sensor event, usually the user touching the sensor.
+         */
+        TIME_TO_TOUCH,
+        /**
+         * From listening until a fingerprint is authenticated.
+         */
+        TIME_TO_SUCCESS
+    }
+
+    enum Event {
+        AUTHENTICATED,
+        /**
+         * A fingerprint wasn't recognized.
+         */
+        FAILED,
+        /**
+         * A help message, e.g. the finger moved too fast.
+         */
+        HELP,
+        /**
+         * An unrecoverable sensor error, including lockouts.
+         */
+        ERROR
+    }
+
+    void onPhase(@NonNull String keyName, @NonNull Phase phase, long durationNanos);
+
+    void onEvent(@NonNull String keyName, @NonNull Event event);
+}
@@ -0,0 +1,121 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link DigitusMetrics} sink which keeps a latency histogram per phase, and event counters
+ * per key name. Recording is lock-free. Histogram buckets are powers of two, so percentiles are
+ * accurate to within a factor of two, which is plenty for spotting slow devices when aggregating.
+ */
+public class DigitusMetricsRecorder implements DigitusMetrics {
+
+    private static final int BUCKETS = 64;
+    private static final DigitusMetrics.Phase[] PHASES = DigitusMetrics.Phase.values();
+    private static final DigitusMetrics.Event[] EVENTS = DigitusMetrics.Event.values();
+
+    /**
+     * Per phase: the bucket counts, followed by the total count and the total nanoseconds.
+     */
+    private final AtomicLongArray[] histograms = new AtomicLongArray[PHASES.length];
+    private final ConcurrentMap<String, AtomicLongArray> events = new ConcurrentHashMap<>();
+
+    public DigitusMetricsRecorder() {
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new AtomicLongArray(BUCKETS + 2);
+    }
+
+    @Override
+    public void onPhase(@NonNull String keyName, @NonNull Phase phase, long durationNanos) {
+        final AtomicLongArray histogram = histograms[phase.ordinal()];
+        histogram.incrementAndGet(bucket(durationNanos));
+        histogram.incrementAndGet(BUCKETS);
+        histogram.addAndGet(BUCKETS + 1, durationNanos);
+    }
+
+    @Override
+    public void onEvent(@NonNull String keyName, @NonNull Event event) {
+        AtomicLongArray counters = events.get(keyName);
+        if (counters == null) {
+            final AtomicLongArray created = new AtomicLongArray(EVENTS.length);
+            counters = events.putIfAbsent(keyName, created);
+            if (counters == null) counters = created;
+        }
+        counters.incrementAndGet(event.ordinal());
+    }
+
+    /**
+     * @return how many times the phase has been recorded.
+     */
+    public long getCount(@NonNull Phase phase) {
+        return histograms[phase.ordinal()].get(BUCKETS);
+    }
+
+    public long getMeanNanos(@NonNull Phase phase) {
+        final AtomicLongArray histogram = histograms[phase.ordinal()];
+        final long count = histogram.get(BUCKETS);
+        return count > 0 ? histogram.get(BUCKETS + 1) / count : 0;
+    }
+
+    /**
+     * @param percentile a percentile from 0 to 100, e.g. 95.
+     * @return an upper bound for the given percentile of the phase's duration, or 0 if it hasn't
+     * been recorded.
+     */
+    public long getPercentileNanos(@NonNull Phase phase, double percentile) {
+        final AtomicLongArray histogram = histograms[phase.ordinal()];
+        final long count = histogram.get(BUCKETS);
+        if (count == 0) return 0;
+        final long target = Math.max(1, (long) Math.ceil(count * percentile / 100d));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram.get(i);
+            if (seen >= target)
+                return i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @return how many times the event occurred for sessions with the given key name.
+     */
+    public long getEventCount(@NonNull String keyName, @NonNull Event event) {
+        final AtomicLongArray counters = events.get(keyName);
+        return counters != null ? counters.get(event.ordinal()) : 0;
+    }
+
+    public void reset() {
+        for (AtomicLongArray histogram : histograms) {
+            for (int i = 0; i < histogram.length(); i++)
+                histogram.set(i, 0);
+        }
+        events.clear();
+    }
+
+    private static int bucket(long nanos) {
+        return nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("DigitusMetricsRecorder{");
+        for (Phase phase : PHASES) {
+            final long count = getCount(phase);
+            if (count == 0) continue;
+            sb.append(phase).append(": n=").append(count)
+                    .append(" mean=").append(getMeanNanos(phase) / 1000000d).append("ms")
+                    .append(" p50<").append(getPercentileNanos(phase, 50) / 1000000d).append("ms")
+                    .append(" p95<").append(getPercentileNanos(phase, 95) / 1000000d).append("ms; ");
+        }
+        for (String keyName : events.keySet()) {
+            sb.append(keyName).append(':');
+            for (Event event : EVENTS)
+                sb.append(' ').append(event).append('=').append(getEventCount(keyName, event));
+            sb.append("; ");
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,646 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Persistent encrypted key-value storage built on the fingerprint-bound key.
+ * <p>
+ * Values are encrypted with a random data key, which is wrapped by the Android Key Store key, so
+ * unlocking the vault costs a single fingerprint touch. Records are appended to a segment file and
+ * located through a memory-mapped offset index; reading a value only reads and decrypts that one
+ * record. Overwritten and removed records are reclaimed by compaction on a background thread.
+ * <p>
+ * Record keys are stored as an HMAC under a key derived from the data key, so the names of the
+ * stored values aren't readable from disk, and every operation needs the vault to be unlocked.
+ * <p>
+ * To create or unlock a vault, start listening with {@link Digitus#startListening()} if
+ * {@link #getUnlockIv()} is null (a new vault), or with {@link Digitus#startListening(byte[])}
+ * otherwise, and pass the authenticated instance to {@link #unlock(Digitus)}.
+ */
+public final class DigitusVault {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /**
+     * Maps record keys to and from Strings one byte per char, for the pending writes.
+     */
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final int SEGMENT_MAGIC = 0x44475853; // DGXS
+    private static final int SEGMENT_VERSION = 1;
+    private static final int SEGMENT_HEADER_SIZE = 16; // magic, version, generation
+    private static final int RECORD_HEADER_SIZE = 7; // length, flags, key length
+    private static final byte FLAG_VALUE = 0;
+    private static final byte FLAG_TOMBSTONE = 1;
+    private static final long TOMBSTONE = -1;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] KEY_MAC_LABEL = "DigitusVault record keys".getBytes(UTF_8);
+    /**
+     * Number of writes kept in memory before they're merged into the on-disk index.
+     */
+    private static final int FLUSH_THRESHOLD = 256;
+    /**
+     * Compaction kicks in once at least this much, and at least half, of the segment is garbage.
+     */
+    private static final long COMPACT_MIN_GARBAGE_BYTES = 64 * 1024;
+
+    private final File segmentFile;
+    private final File indexFile;
+    private final File keyFile;
+    private final File compactFile;
+
+    private RandomAccessFile segment;
+    private FileChannel channel;
+    private long segmentLength;
+    /**
+     * Incremented by every compaction, and stored in both the segment and the index.
+     */
+    private long generation;
+    private VaultIndex index;
+    /**
+     * Writes which aren't in the index yet, mapping keys to record offsets or {@link #TOMBSTONE}.
+     */
+    private final Map<String, Long> delta = new HashMap<>();
+    private long garbageBytes;
+
+    private byte[] unlockIv;
+    private byte[] wrappedKey;
+    private SecretKey dataKey;
+    private Mac keyMac;
+
+    private boolean compacting;
+    private boolean closed;
+    private Future<Void> pendingCompaction;
+
+    private DigitusVault(@NonNull File directory, @NonNull String name) {
+        segmentFile = new File(directory, name + ".seg");
+        indexFile = new File(directory, name + ".idx");
+        keyFile = new File(directory, name + ".key");
+        compactFile = new File(directory, name + ".seg.compact");
+    }
+
+    /**
+     * Opens or creates the vault with the given name. The vault starts out locked.
+     */
+    public static DigitusVault open(@NonNull File directory, @NonNull String name) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Failed to create " + directory);
+        DigitusVault vault = new DigitusVault(directory, name);
+        vault.load();
+        return vault;
+    }
+
+    private void load() throws IOException {
+        readKeyFile();
+        openSegment();
+        try {
+            segmentLength = channel.size();
+            if (segmentLength == 0) {
+                generation = 1;
+                writeSegmentHeader(channel, generation);
+                segmentLength = SEGMENT_HEADER_SIZE;
+            } else {
+                generation = readSegmentHeader(channel);
+            }
+            index = VaultIndex.open(indexFile);
+            // A compaction may have replaced the segment without getting to save its index
+            if (index.generation() != generation || index.coveredLength() > segmentLength)
+                index = VaultIndex.empty();
+            garbageBytes = index.garbageBytes();
+            // Pick up records written after the index was last saved
+            replay(Math.max(SEGMENT_HEADER_SIZE, index.coveredLength()));
+        } catch (IOException e) {
+            segment.close();
+            throw e;
+        }
+    }
+
+    private void openSegment() throws IOException {
+        segment = new RandomAccessFile(segmentFile, "rw");
+        channel = segment.getChannel();
+    }
+
+    // Unlocking
+
+    /**
+     * @return whether the vault has a data key yet. If not, the first {@link #unlock(Digitus)}
+     * creates one.
+     */
+    public synchronized boolean isCreated() {
+        return wrappedKey != null;
+    }
+
+    /**
+     * @return the IV to pass to {@link Digitus#startListening(byte[])} to unlock the vault, or
+     * null if the vault hasn't been created and {@link Digitus#startListening()} should be used.
+     */
+    @Nullable
+    public synchronized byte[] getUnlockIv() {
+        return unlockIv != null ? unlockIv.clone() : null;
+    }
+
+    /**
+     * Unlocks the vault with the cipher from a successful authentication, creating the vault's
+     * data key if it doesn't have one yet.
+     */
+    public synchronized void unlock(@NonNull Digitus digitus) throws GeneralSecurityException, IOException {
+        checkOpen();
+        if (wrappedKey == null) {
+            final byte[] iv = digitus.getIv();
+            final SecretKey key = BatchCrypto.newDataKey();
+            final byte[] wrapped = digitus.encrypt(key.getEncoded());
+            writeKeyFile(iv, wrapped);
+            unlockIv = iv;
+            wrappedKey = wrapped;
+            dataKey = key;
+        } else {
+            final byte[] rawKey = digitus.decrypt(wrappedKey);
+            dataKey = BatchCrypto.dataKey(rawKey);
+            Arrays.fill(rawKey, (byte) 0);
+        }
+        keyMac = newKeyMac(dataKey);
+    }
+
+    /**
+     * Wraps the unlocked vault's data key with a new Key Store key, so the vault survives
+     * {@link Digitus#rotateKey()}. Unlock the vault before rotating, then start listening with
+     * {@link Digitus#startListening()} and pass the authenticated instance here.
+     * <p>
+     * A key invalidated by a new fingerprint can't unwrap the data key anymore, so a vault which
+     * isn't unlocked at that point can't be recovered.
+     */
+    public synchronized void rewrap(@NonNull Digitus digitus) throws GeneralSecurityException, IOException {
+        checkOpen();
+        final SecretKey key = checkUnlocked();
+        final byte[] iv = digitus.getIv();
+        final byte[] wrapped = digitus.encrypt(key.getEncoded());
+        writeKeyFile(iv, wrapped);
+        unlockIv = iv;
+        wrappedKey = wrapped;
+    }
+
+    /**
+     * @return a MAC for record keys, keyed separately from the values.
+     */
+    private static Mac newKeyMac(SecretKey dataKey) throws GeneralSecurityException {
+        final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(dataKey.getEncoded(), MAC_ALGORITHM));
+        final byte[] macKey = mac.doFinal(KEY_MAC_LABEL);
+        mac.init(new SecretKeySpec(macKey, MAC_ALGORITHM));
+        Arrays.fill(macKey, (byte) 0);
+        return mac;
+    }
+
+    public synchronized boolean isUnlocked() {
+        return dataKey != null;
+    }
+
+    /**
+     * Forgets the data key, values can't be read or written until the vault is unlocked again.
+     */
+    public synchronized void lock() {
+        dataKey = null;
+        keyMac = null;
+    }
+
+    // Reads and writes
+
+    @Nullable
+    public synchronized byte[] get(@NonNull String key) throws IOException, GeneralSecurityException {
+        checkOpen();
+        final SecretKey dataKey = checkUnlocked();
+        final byte[] keyBytes = recordKey(key);
+        final long offset = lookup(keyBytes);
+        if (offset == TOMBSTONE) return null;
+
+        final int size = recordSize(channel, offset);
+        final ByteBuffer record = ByteBuffer.allocate(size);
+        if (!readFully(channel, record, offset))
+            throw new IOException("Record for " + key + " is truncated.");
+        final byte[] data = record.array();
+        final int valueOffset = RECORD_HEADER_SIZE + keyBytes.length;
+        // The key is authenticated along with the value, a record can't be moved to another key
+        return BatchCrypto.open(dataKey, keyBytes, data, valueOffset, size - valueOffset);
+    }
+
+    public synchronized boolean contains(@NonNull String key) throws IOException {
+        checkOpen();
+        return lookup(recordKey(key)) != TOMBSTONE;
+    }
+
+    public synchronized void put(@NonNull String key, @NonNull byte[] value) throws IOException, GeneralSecurityException {
+        checkOpen();
+        final SecretKey dataKey = checkUnlocked();
+        final byte[] keyBytes = recordKey(key);
+        final byte[] sealed = BatchCrypto.seal(dataKey, keyBytes, value);
+        final long offset = segmentLength;
+        final int size = append(FLAG_VALUE, keyBytes, sealed);
+        apply(keyBytes, offset, size);
+        afterWrite();
+    }
+
+    /**
+     * @return {@code true} if the key had a value.
+     */
+    public synchronized boolean remove(@NonNull String key) throws IOException {
+        checkOpen();
+        final byte[] keyBytes = recordKey(key);
+        if (lookup(keyBytes) == TOMBSTONE) return false;
+        final int size = append(FLAG_TOMBSTONE, keyBytes, new byte[0]);
+        apply(keyBytes, TOMBSTONE, size);
+        afterWrite();
+        return true;
+    }
+
+    /**
+     * Makes sure every write so far is on disk, and saves the index.
+     */
+    public synchronized void flush() throws IOException {
+        checkOpen();
+        channel.force(false);
+        if (!compacting)
+            flushIndex();
+    }
+
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        flush();
+        closed = true;
+        dataKey = null;
+        keyMac = null;
+        segment.close();
+    }
+
+    // Compaction
+
+    /**
+     * Rewrites the segment without overwritten or removed records on a background thread of its
+     * own. Reads and writes can continue while it runs. This also happens automatically once
+     * enough of the segment is garbage.
+     */
+    public synchronized Future<Void> compact() {
+        if (pendingCompaction != null && !pendingCompaction.isDone())
+            return pendingCompaction;
+        pendingCompaction = DigitusExecutors.vault().submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                compactNow();
+                return null;
+            }
+        });
+        return pendingCompaction;
+    }
+
+    private void compactNow() throws IOException {
+        final VaultIndex snapshot;
+        final long snapshotEnd;
+        final long snapshotGarbage;
+        final long newGeneration;
+        final FileChannel source;
+        synchronized (this) {
+            if (closed || compacting) return;
+            flushIndex();
+            snapshot = index;
+            snapshotEnd = segmentLength;
+            snapshotGarbage = garbageBytes;
+            newGeneration = generation + 1;
+            source = channel;
+            compacting = true;
+        }
+        try {
+            RandomAccessFile out = new RandomAccessFile(compactFile, "rw");
+            try {
+                out.setLength(0);
+                final FileChannel target = out.getChannel();
+                writeSegmentHeader(target, newGeneration);
+
+                // Records before the snapshot never change, so they're copied without holding the lock
+                final int count = snapshot.count();
+                final long[] oldOffsets = new long[count];
+                for (int i = 0; i < count; i++)
+                    oldOffsets[i] = snapshot.offsetAt(i);
+                Arrays.sort(oldOffsets);
+                final long[] newOffsets = new long[count];
+                long position = SEGMENT_HEADER_SIZE;
+                for (int i = 0; i < count; i++) {
+                    int size = recordSize(source, oldOffsets[i]);
+                    transfer(source, oldOffsets[i], size, target, position);
+                    newOffsets[i] = position;
+                    position += size;
+                }
+
+                synchronized (this) {
+                    if (closed) return;
+                    // Records appended while copying don't depend on their position, move them as-is
+                    transfer(channel, snapshotEnd, segmentLength - snapshotEnd, target, position);
+                    target.force(false);
+
+                    final long[] hashes = new long[count];
+                    final long[] offsets = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        hashes[i] = snapshot.hashAt(i);
+                        offsets[i] = newOffsets[Arrays.binarySearch(oldOffsets, snapshot.offsetAt(i))];
+                    }
+
+                    segment.close();
+                    if (!compactFile.renameTo(segmentFile)) {
+                        // The old segment is still intact, keep using it
+                        openSegment();
+                        throw new IOException("Failed to replace " + segmentFile);
+                    }
+                    openSegment();
+                    segmentLength = channel.size();
+                    generation = newGeneration;
+
+                    // If this doesn't make it to disk, the generations won't match on the next load
+                    try {
+                        VaultIndex.write(indexFile, hashes, offsets, count, position, 0, generation);
+                        index = VaultIndex.open(indexFile);
+                    } catch (IOException e) {
+                        rebuildIndex();
+                        throw e;
+                    }
+                    final long shift = position - snapshotEnd;
+                    for (Map.Entry<String, Long> entry : delta.entrySet()) {
+                        if (entry.getValue() != TOMBSTONE)
+                            entry.setValue(entry.getValue() + shift);
+                    }
+                    garbageBytes = Math.max(0, garbageBytes - snapshotGarbage);
+                    compacting = false;
+                    flushIndex();
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            synchronized (this) {
+                compacting = false;
+                // Left behind if the rename failed
+                //noinspection ResultOfMethodCallIgnored
+                compactFile.delete();
+            }
+        }
+    }
+
+    private boolean shouldCompact() {
+        return garbageBytes >= COMPACT_MIN_GARBAGE_BYTES && garbageBytes * 2 >= segmentLength;
+    }
+
+    // Internals
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("This vault has been closed.");
+    }
+
+    private SecretKey checkUnlocked() {
+        if (dataKey == null)
+            throw new IllegalStateException("This vault is locked, unlock(Digitus) must be called first.");
+        return dataKey;
+    }
+
+    /**
+     * @return the key as it's stored in records.
+     */
+    private byte[] recordKey(String key) {
+        checkUnlocked();
+        return keyMac.doFinal(key.getBytes(UTF_8));
+    }
+
+    /**
+     * @return the offset of the key's current record, or {@link #TOMBSTONE} if it has no value.
+     */
+    private long lookup(byte[] keyBytes) throws IOException {
+        final Long pending = delta.get(new String(keyBytes, ISO_8859_1));
+        if (pending != null) return pending;
+        final long hash = VaultIndex.hash(keyBytes);
+        for (int i = index.find(hash); i >= 0 && i < index.count() && index.hashAt(i) == hash; i++) {
+            long offset = index.offsetAt(i);
+            if (keyMatches(offset, keyBytes))
+                return offset;
+        }
+        return TOMBSTONE;
+    }
+
+    private boolean keyMatches(long offset, byte[] keyBytes) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE + keyBytes.length);
+        if (!readFully(channel, header, offset)) return false;
+        if ((header.getShort(5) & 0xffff) != keyBytes.length) return false;
+        for (int i = 0; i < keyBytes.length; i++) {
+            if (header.get(RECORD_HEADER_SIZE + i) != keyBytes[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records a write of the key, accounting for the record it replaces.
+     */
+    private void apply(byte[] keyBytes, long offset, int size) throws IOException {
+        final long previous = lookup(keyBytes);
+        if (previous != TOMBSTONE)
+            garbageBytes += recordSize(channel, previous);
+        if (offset == TOMBSTONE)
+            garbageBytes += size;
+        delta.put(new String(keyBytes, ISO_8859_1), offset);
+    }
+
+    private void afterWrite() throws IOException {
+        if (compacting) return;
+        if (delta.size() >= FLUSH_THRESHOLD)
+            flushIndex();
+        if (shouldCompact())
+            compact();
+    }
+
+    /**
+     * @return the size of the appended record.
+     */
+    private int append(byte flags, byte[] keyBytes, byte[] payload) throws IOException {
+        final int size = RECORD_HEADER_SIZE + keyBytes.length + payload.length;
+        final ByteBuffer record = ByteBuffer.allocate(size);
+        record.putInt(size - 4).put(flags).putShort((short) keyBytes.length)
+                .put(keyBytes).put(payload).flip();
+        long position = segmentLength;
+        while (record.hasRemaining())
+            position += channel.write(record, position);
+        segmentLength = position;
+        return size;
+    }
+
+    private void replay(long from) throws IOException {
+        long position = from;
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= segmentLength) {
+            header.clear();
+            if (!readFully(channel, header, position)) break;
+            final int size = header.getInt(0) + 4;
+            final int keyLength = header.getShort(5) & 0xffff;
+            if (size < RECORD_HEADER_SIZE + keyLength || position + size > segmentLength) break;
+            final ByteBuffer keyBuffer = ByteBuffer.allocate(keyLength);
+            if (!readFully(channel, keyBuffer, position + RECORD_HEADER_SIZE)) break;
+            final byte[] keyBytes = keyBuffer.array();
+            final boolean tombstone = header.get(4) == FLAG_TOMBSTONE;
+            apply(keyBytes, tombstone ? TOMBSTONE : position, size);
+            position += size;
+        }
+        if (position < segmentLength) {
+            // The last write was interrupted, drop the partial record
+            channel.truncate(position);
+            segmentLength = position;
+        }
+    }
+
+    /**
+     * Merges the pending writes into the on-disk index.
+     */
+    private void flushIndex() throws IOException {
+        if (delta.isEmpty() && index.coveredLength() == segmentLength) return;
+        final int existing = index.count();
+        final boolean[] replaced = new boolean[existing];
+        final List<long[]> added = new ArrayList<>(delta.size());
+        for (Map.Entry<String, Long> entry : delta.entrySet()) {
+            final byte[] keyBytes = entry.getKey().getBytes(ISO_8859_1);
+            final long hash = VaultIndex.hash(keyBytes);
+            for (int i = index.find(hash); i >= 0 && i < existing && index.hashAt(i) == hash; i++) {
+                if (!replaced[i] && keyMatches(index.offsetAt(i), keyBytes))
+                    replaced[i] = true;
+            }
+            if (entry.getValue() != TOMBSTONE)
+                added.add(new long[]{hash, entry.getValue()});
+        }
+        Collections.sort(added, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] lhs, long[] rhs) {
+                return lhs[0] < rhs[0] ? -1 : (lhs[0] == rhs[0] ? 0 : 1);
+            }
+        });
+
+        // Both sides are sorted by hash, merge them
+        final long[] hashes = new long[existing + added.size()];
+        final long[] offsets = new long[hashes.length];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < existing || j < added.size()) {
+            if (i < existing && replaced[i]) {
+                i++;
+            } else if (j >= added.size() || (i < existing && index.hashAt(i) <= added.get(j)[0])) {
+                hashes[count] = index.hashAt(i);
+                offsets[count++] = index.offsetAt(i++);
+            } else {
+                hashes[count] = added.get(j)[0];
+                offsets[count++] = added.get(j++)[1];
+            }
+        }
+        VaultIndex.write(indexFile, hashes, offsets, count, segmentLength, garbageBytes, generation);
+        index = VaultIndex.open(indexFile);
+        delta.clear();
+    }
+
+    /**
+     * Drops the index and rebuilds it from the records in the segment.
+     */
+    private void rebuildIndex() throws IOException {
+        index = VaultIndex.empty();
+        delta.clear();
+        garbageBytes = 0;
+        replay(SEGMENT_HEADER_SIZE);
+    }
+
+    private static void writeSegmentHeader(FileChannel channel, long generation) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        header.putInt(SEGMENT_MAGIC).putInt(SEGMENT_VERSION).putLong(generation).flip();
+        long position = 0;
+        while (header.hasRemaining())
+            position += channel.write(header, position);
+    }
+
+    /**
+     * @return the segment's generation.
+     */
+    private static long readSegmentHeader(FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        if (!readFully(channel, header, 0) || header.getInt(0) != SEGMENT_MAGIC)
+            throw new IOException("Not a vault segment.");
+        if (header.getInt(4) != SEGMENT_VERSION)
+            throw new IOException("Unsupported vault version: " + header.getInt(4));
+        return header.getLong(8);
+    }
+
+    private static int recordSize(FileChannel channel, long offset) throws IOException {
+        final ByteBuffer length = ByteBuffer.allocate(4);
+        if (!readFully(channel, length, offset))
+            throw new IOException("Record at " + offset + " is truncated.");
+        return length.getInt(0) + 4;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) return false;
+        }
+        return true;
+    }
+
+    private static void transfer(FileChannel source, long from, long count, FileChannel target, long to) throws IOException {
+        target.position(to);
+        long transferred = 0;
+        while (transferred < count)
+            transferred += source.transferTo(from + transferred, count - transferred, target);
+    }
+
+    private void readKeyFile() throws IOException {
+        if (!keyFile.exists()) return;
+        DataInputStream in = new DataInputStream(new FileInputStream(keyFile));
+        try {
+            unlockIv = new byte[in.readInt()];
+            in.readFully(unlockIv);
+            wrappedKey = new byte[in.readInt()];
+            in.readFully(wrappedKey);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeKeyFile(byte[] iv, byte[] wrapped) throws IOException {
+        final File temp = new File(keyFile.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temp);
+        DataOutputStream out = new DataOutputStream(stream);
+        try {
+            out.writeInt(iv.length);
+            out.write(iv);
+            out.writeInt(wrapped.length);
+            out.write(wrapped);
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(keyFile))
+            throw new IOException("Failed to replace " + keyFile);
+    }
+}
@@ -0,0 +1,473 @@
+package com.afollestad.digitus;
+
+import android.app.Activity;
+import android.app.Dialog;
+import android.content.DialogInterface;
+import android.os.Bundle;
+import android.support.annotation.ColorInt;
+import android.support.annotation.DrawableRes;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.StringRes;
+import android.support.v4.app.DialogFragment;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentActivity;
+import android.view.KeyEvent;
+import android.view.View;
+import android.view.inputmethod.EditorInfo;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import java.util.concurrent.Future;
+
+/**
+ * The state machine shared by {@link FingerprintDialog} and {@link SlimFingerprintDialog}: the
+ * stages, the session, attempt tracking and password verification. Subclasses only build and
+ * update the dialog itself.
+ */
+@SuppressWarnings("ResourceType")
+public abstract class FingerprintDialogBase extends DialogFragment
+        implements TextView.OnEditorActionListener, DigitusCallback {
+
+    public interface Callback {
+        void onFingerprintDialogAuthenticated();
+
+        void onFingerprintDialogVerifyPassword(FingerprintDialogBase dialog, String password);
+
+        void onFingerprintDialogStageUpdated(FingerprintDialogBase dialog, Stage stage);
+
+        /**
+         * Called when the password confirmed the user after a new fingerprint was enrolled, right
+         * before {@link #onFingerprintDialogAuthenticated()}. The key stays invalidated until
+         * {@link Digitus#rotateKey()} is called, which makes everything encrypted with it
+         * unreadable; see {@link DigitusVault#rewrap(Digitus)}.
+         *
+         * @param useFingerprintInFuture whether the user asked to use fingerprints again.
+         */
+        void onFingerprintDialogNewFingerprintConfirmed(FingerprintDialogBase dialog, boolean useFingerprintInFuture);
+
+        void onFingerprintDialogCancelled();
+    }
+
+    static final long ERROR_TIMEOUT_MILLIS = 1600;
+    static final long SUCCESS_DELAY_MILLIS = 1300;
+    static final String TAG = "[DIGITUS_FPDIALOG]";
+
+    EditText password;
+    CheckBox useFingerprintFutureCheckBox;
+    TextView passwordDescriptionTextView;
+    TextView newFingerprintEnrolledTextView;
+    ImageView fingerprintIcon;
+    TextView fingerprintStatus;
+    PromptColors colors;
+    private AttemptTracker attempts;
+    private PasswordVerifier passwordVerifier;
+    private Future<Boolean> pendingVerification;
+
+    private Stage lastStage;
+    private Stage stage = Stage.FINGERPRINT;
+    private Digitus digitus;
+    private Callback callback;
+
+    FingerprintDialogBase() {
+    }
+
+    static <T extends FragmentActivity & Callback, D extends FingerprintDialogBase> D show(T context, D dialog, String keyName, int requestCode, boolean cancelable) {
+        final FingerprintDialogBase visible = getVisible(context);
+        if (visible != null)
+            visible.dismiss();
+        Bundle args = new Bundle();
+        args.putString("key_name", keyName);
+        args.putInt("request_code", requestCode);
+        args.putBoolean("cancelable", cancelable);
+        dialog.setArguments(args);
+        dialog.show(context.getSupportFragmentManager(), TAG);
+        return dialog;
+    }
+
+    /**
+     * @return the visible fingerprint dialog of either kind, or null if there's none.
+     */
+    public static <T extends FragmentActivity> FingerprintDialogBase getVisible(T context) {
+        Fragment frag = context.getSupportFragmentManager().findFragmentByTag(TAG);
+        if (frag != null && frag instanceof FingerprintDialogBase)
+            return (FingerprintDialogBase) frag;
+        return null;
+    }
+
+    public void setTitle(@NonNull CharSequence title) {
+        Dialog dialog = getDialog();
+        if (dialog != null) dialog.setTitle(title);
+    }
+
+    public void setTitle(@StringRes int titleRes) {
+        Dialog dialog = getDialog();
+        if (dialog != null) dialog.setTitle(titleRes);
+    }
+
+    @Override public void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putSerializable("stage", stage);
+    }
+
+    @NonNull
+    @Override
+    public Dialog onCreateDialog(Bundle savedInstanceState) {
+        if (getArguments() == null || !getArguments().containsKey("key_name"))
+            throw new IllegalStateException("FingerprintDialog must be shown with show(Activity, String, int).");
+        else if (savedInstanceState != null)
+            stage = (Stage) savedInstanceState.getSerializable("stage");
+        final boolean cancelable = getArguments().getBoolean("cancelable", true);
+        setCancelable(cancelable);
+        colors = PromptColors.get(getActivity());
+        attempts = new AttemptTracker(getActivity(), getArguments().getString("key_name", ""));
+        passwordVerifier = new PasswordVerifier(getActivity(), getArguments().getString("key_name", ""));
+        return createDialog(cancelable);
+    }
+
+    // Hooks for the dialog implementation. FingerprintDialog and SlimFingerprintDialog each build
+    // their own dialog, so only the one in use loads its dependencies.
+
+    abstract Dialog createDialog(boolean cancelable);
+
+    abstract void showContent(boolean fingerprint);
+
+    abstract void setButtons(@StringRes int positive, @StringRes int negative);
+
+    abstract void toggleButtonsEnabled(boolean enabled);
+
+    abstract void setFingerprintIcon(@DrawableRes int icon);
+
+    abstract void showPasswordError(@ColorInt int color);
+
+    // End of hooks
+
+    /**
+     * Finds the views shared by every dialog layout.
+     */
+    void bindViews(View v) {
+        password = (EditText) v.findViewById(R.id.password);
+        password.setOnEditorActionListener(this);
+        passwordDescriptionTextView = (TextView) v.findViewById(R.id.password_description);
+        useFingerprintFutureCheckBox = (CheckBox) v.findViewById(R.id.use_fingerprint_in_future_check);
+        newFingerprintEnrolledTextView = (TextView) v.findViewById(R.id.new_fingerprint_enrolled_description);
+        fingerprintIcon = (ImageView) v.findViewById(R.id.fingerprint_icon);
+        fingerprintStatus = (TextView) v.findViewById(R.id.fingerprint_status);
+        fingerprintStatus.setText(R.string.initializing);
+    }
+
+    @Override public void onViewCreated(View view, @Nullable Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        updateStage();
+    }
+
+    void onNegative() {
+        if (stage == Stage.FINGERPRINT) {
+            goToBackup();
+        } else {
+            verifyPassword();
+        }
+    }
+
+    @Override public void onResume() {
+        super.onResume();
+        final String keyName = getArguments().getString("key_name", "");
+        final Digitus existing = Digitus.get(keyName);
+        if (!getArguments().containsKey("owns_session"))
+            getArguments().putBoolean("owns_session", existing == null);
+        if (existing != null && !getArguments().getBoolean("owns_session", true)) {
+            // Observe the Activity's session rather than taking it over
+            digitus = existing;
+            digitus.addCallback(this);
+            if (digitus.isReady())
+                onDigitusReady(digitus);
+        } else {
+            getArguments().putBoolean("owns_session", true);
+            digitus = Digitus.init(getActivity(), keyName,
+                    getArguments().getInt("request_code", -1),
+                    FingerprintDialogBase.this);
+        }
+    }
+
+    @Override public void onPause() {
+        super.onPause();
+        if (digitus != null) {
+            // Only the sensor stops, onResume() picks up where it left off
+            digitus.pause();
+        }
+    }
+
+    @Override public void onCancel(DialogInterface dialog) {
+        super.onCancel(dialog);
+        redirectToActivity();
+        if (callback != null) {
+            callback.onFingerprintDialogCancelled();
+        }
+    }
+
+    @Override public void onDismiss(DialogInterface dialog) {
+        super.onDismiss(dialog);
+        if (pendingVerification != null) {
+            pendingVerification.cancel(false);
+            pendingVerification = null;
+        }
+        removePendingRunnables();
+        redirectToActivity();
+    }
+
+    @Override public void onDestroyView() {
+        removePendingRunnables();
+        super.onDestroyView();
+    }
+
+    /**
+     * Delayed runnables hold on to the dialog, and through it the Activity, until they run.
+     */
+    private void removePendingRunnables() {
+        if (password != null)
+            password.removeCallbacks(showKeyboardRunnable);
+        if (fingerprintStatus != null) {
+            fingerprintStatus.removeCallbacks(resetErrorTextRunnable);
+            fingerprintStatus.removeCallbacks(authenticatedRunnable);
+            fingerprintStatus.removeCallbacks(goToBackupRunnable);
+        }
+    }
+
+    private void redirectToActivity() {
+        if (digitus == null) return;
+        // The dialog is recreated after a configuration change, and rebinds to the session then
+        final boolean recreating = getActivity() != null && getActivity().isChangingConfigurations();
+        if (!getArguments().getBoolean("owns_session", true)) {
+            // Leave the Activity's session as it is, just stop observing it
+            digitus.removeCallback(this);
+            if (!recreating)
+                digitus.stopListening();
+        } else if (!recreating) {
+            Digitus.deinit(getArguments().getString("key_name", ""));
+        }
+        digitus = null;
+    }
+
+    @Override public void onAttach(Activity activity) {
+        super.onAttach(activity);
+        if (!(activity instanceof Callback)) {
+            Digitus.deinit(getArguments().getString("key_name", ""));
+            throw new IllegalStateException("Activities showing a FingerprintDialog must implement FingerprintDialog.Callback.");
+        }
+        callback = (Callback) activity;
+    }
+
+    /**
+     * Switches to backup (password) screen. This either can happen when fingerprint is not
+     * available or the user chooses to use the password authentication method by pressing the
+     * button. This can also happen when the user had too many fingerprint attempts.
+     */
+    private void goToBackup() {
+        stage = Stage.PASSWORD;
+        updateStage();
+        password.requestFocus();
+        // Show the keyboard.
+        password.postDelayed(showKeyboardRunnable, 500);
+        // Fingerprint is not used anymore. Stop listening for it.
+        if (digitus != null) {
+            digitus.stopListening();
+        }
+    }
+
+    private void verifyPassword() {
+        toggleButtonsEnabled(false);
+        if (!passwordVerifier.isEnrolled()) {
+            callback.onFingerprintDialogVerifyPassword(this, password.getText().toString());
+            return;
+        }
+        // A password was set with PasswordVerifier, so the Activity doesn't need to check it
+        if (pendingVerification != null)
+            pendingVerification.cancel(false);
+        pendingVerification = passwordVerifier.verify(password.getText().toString(), new PasswordVerifier.Callback() {
+            @Override
+            public void onPasswordVerified(boolean valid) {
+                pendingVerification = null;
+                notifyPasswordValidation(valid);
+            }
+        });
+    }
+
+    public void notifyPasswordValidation(boolean valid) {
+        toggleButtonsEnabled(true);
+
+        if (valid) {
+            attempts.recordPasswordSuccess();
+            if (stage == Stage.NEW_FINGERPRINT_ENROLLED) {
+                // Rotating the key loses whatever it protects, that's the app's call
+                callback.onFingerprintDialogNewFingerprintConfirmed(this, useFingerprintFutureCheckBox.isChecked());
+            }
+            password.setText("");
+            callback.onFingerprintDialogAuthenticated();
+            dismiss();
+        } else {
+            passwordDescriptionTextView.setText(R.string.password_not_recognized);
+            showPasswordError(colors.error);
+        }
+    }
+
+    private final Runnable showKeyboardRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (digitus != null) {
+                digitus.inputMethodManager.showSoftInput(password, 0);
+            }
+        }
+    };
+
+    private void updateStage() {
+        if (lastStage == null || (lastStage != stage && callback != null)) {
+            lastStage = stage;
+            callback.onFingerprintDialogStageUpdated(this, stage);
+        }
+        if (getDialog() == null) return;
+        switch (stage) {
+            case FINGERPRINT:
+                setButtons(android.R.string.cancel, R.string.use_password);
+                showContent(true);
+                break;
+            case NEW_FINGERPRINT_ENROLLED:
+                // Intentional fall through
+            case PASSWORD:
+                setButtons(android.R.string.cancel, android.R.string.ok);
+                showContent(false);
+                if (stage == Stage.NEW_FINGERPRINT_ENROLLED) {
+                    passwordDescriptionTextView.setVisibility(View.GONE);
+                    newFingerprintEnrolledTextView.setVisibility(View.VISIBLE);
+                    useFingerprintFutureCheckBox.setVisibility(View.VISIBLE);
+                }
+                break;
+        }
+    }
+
+    @Override public boolean onEditorAction(TextView v, int actionId, KeyEvent event) {
+        if (actionId == EditorInfo.IME_ACTION_GO) {
+            verifyPassword();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Enumeration to indicate which authentication method the user is trying to authenticate with.
+     */
+    public enum Stage {
+        FINGERPRINT,
+        NEW_FINGERPRINT_ENROLLED,
+        PASSWORD
+    }
+
+    private void showError(CharSequence error) {
+        if (getActivity() == null) return;
+        setFingerprintIcon(R.drawable.ic_fingerprint_error);
+        fingerprintStatus.setText(error);
+        fingerprintStatus.setTextColor(colors.warning);
+        fingerprintStatus.removeCallbacks(resetErrorTextRunnable);
+        fingerprintStatus.postDelayed(resetErrorTextRunnable, ERROR_TIMEOUT_MILLIS);
+    }
+
+    private final Runnable authenticatedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            callback.onFingerprintDialogAuthenticated();
+            dismiss();
+        }
+    };
+
+    private final Runnable goToBackupRunnable = new Runnable() {
+        @Override
+        public void run() {
+            goToBackup();
+        }
+    };
+
+    Runnable resetErrorTextRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (getActivity() == null) return;
+            fingerprintStatus.setTextColor(colors.textSecondary);
+            fingerprintStatus.setText(getResources().getString(R.string.fingerprint_hint));
+            setFingerprintIcon(R.drawable.ic_fp_40px);
+        }
+    };
+
+    // Digitus callbacks
+
+    @Override public void onDigitusReady(Digitus digitus) {
+        if (stage == Stage.FINGERPRINT && attempts.isLockedOut()) {
+            // The sensor would only report the lockout again
+            passwordDescriptionTextView.setText(R.string.fingerprint_locked_out);
+            goToBackup();
+            return;
+        }
+        digitus.startListening();
+    }
+
+    @Override public void onDigitusListening(boolean newFingerprint) {
+        fingerprintStatus.setText(R.string.fingerprint_hint);
+        if (newFingerprint)
+            stage = Stage.NEW_FINGERPRINT_ENROLLED;
+        updateStage();
+    }
+
+    @Override public void onDigitusAuthenticated(Digitus digitus) {
+        // Only the password can confirm the user until the key is rotated
+        if (stage == Stage.NEW_FINGERPRINT_ENROLLED) return;
+        attempts.recordSuccess();
+        toggleButtonsEnabled(false);
+        fingerprintStatus.removeCallbacks(resetErrorTextRunnable);
+        setFingerprintIcon(R.drawable.ic_fingerprint_success);
+        fingerprintStatus.setTextColor(colors.success);
+        fingerprintStatus.setText(getResources().getString(R.string.fingerprint_success));
+        fingerprintStatus.postDelayed(authenticatedRunnable, SUCCESS_DELAY_MILLIS);
+    }
+
+    @Override public void onDigitusError(
+            Digitus digitus,
+            DigitusError error) {
+        switch (error.getType()) {
+            case FINGERPRINTS_UNSUPPORTED:
+                goToBackup();
+                break;
+            case UNRECOVERABLE_ERROR:
+                attempts.recordError(error.getCode());
+                if (error.getCode() == AttemptTracker.ERROR_LOCKOUT) {
+                    // Waiting on the error gains nothing, the password is the only way in for now
+                    passwordDescriptionTextView.setText(R.string.fingerprint_locked_out);
+                    goToBackup();
+                    break;
+                } else if (error.getCode() == AttemptTracker.ERROR_TIMEOUT) {
+                    goToBackup();
+                    break;
+                }
+                // Intentional fall through
+            case PERMISSION_DENIED:
+                showError(error.getMessage());
+                fingerprintStatus.postDelayed(goToBackupRunnable, ERROR_TIMEOUT_MILLIS);
+                break;
+            case REGISTRATION_NEEDED:
+                passwordDescriptionTextView.setText(R.string.no_fingerprints_registered);
+                goToBackup();
+                break;
+            case HELP_ERROR:
+                showError(error.getMessage());
+                break;
+            case FINGERPRINT_NOT_RECOGNIZED:
+                attempts.recordFailure();
+                if (attempts.shouldUseBackup()) {
+                    // Switch before the sensor locks out, rather than after
+                    passwordDescriptionTextView.setText(R.string.fingerprint_use_password);
+                    goToBackup();
+                } else {
+                    showError(getResources().getString(R.string.fingerprint_not_recognized));
+                }
+                break;
+        }
+    }
+}
\ No newline at end of file
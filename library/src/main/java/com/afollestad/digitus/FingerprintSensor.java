@@ -0,0 +1,73 @@
+package com.afollestad.digitus;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.security.Signature;
+
+import javax.crypto.Cipher;
+
+/**
+ * The fingerprint hardware Digitus authenticates with. By default this is the framework's
+ * FingerprintManager; the FakeFingerprintSensor from the digitus-testing artifact can be installed
+ * with {@link Digitus#setFingerprintSensor(FingerprintSensor)} to script sensor events instead.
+ */
+public interface FingerprintSensor {
+
+    /**
+     * Receives the events of one {@link #authenticate(Cipher, Handler, Callback)} request. After
+     * {@link #onSucceeded(Cipher)} or {@link #onError(int, CharSequence)}, the request is over.
+     */
+    interface Callback {
+
+        /**
+         * @param cipher the cipher passed to authenticate(), now unlocked, or null if none was.
+         */
+        void onSucceeded(@Nullable Cipher cipher);
+
+        /**
+         * A fingerprint was read, but not recognized.
+         */
+        void onFailed();
+
+        void onHelp(int helpCode, @NonNull CharSequence helpString);
+
+        void onError(int errorCode, @NonNull CharSequence errString);
+    }
+
+    /**
+     * A running authentication request.
+     */
+    interface Request {
+
+        /**
+         * Stops listening. The framework reports a cancellation error afterwards, which Digitus
+         * ignores.
+         */
+        void cancel();
+    }
+
+    boolean isHardwareDetected();
+
+    boolean hasEnrolledFingerprints();
+
+    /**
+     * Starts listening for a fingerprint.
+     *
+     * @param cipher  an initialized cipher to unlock, or null to authenticate without one.
+     * @param handler the handler to deliver events on, or null for the main thread.
+     */
+    @NonNull
+    Request authenticate(@Nullable Cipher cipher, @Nullable Handler handler, @NonNull Callback callback);
+
+    /**
+     * Starts listening for a fingerprint which unlocks a signature. {@link Callback#onSucceeded(Cipher)}
+     * receives null, the signature itself can be used afterwards.
+     *
+     * @param signature a signature initialized for signing.
+     * @param handler   the handler to deliver events on, or null for the main thread.
+     */
+    @NonNull
+    Request authenticate(@NonNull Signature signature, @Nullable Handler handler, @NonNull Callback callback);
+}
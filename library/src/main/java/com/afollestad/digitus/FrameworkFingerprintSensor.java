@@ -0,0 +1,89 @@
+package com.afollestad.digitus;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.hardware.fingerprint.FingerprintManager;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.security.Signature;
+
+import javax.crypto.Cipher;
+
+/**
+ * The default {@link FingerprintSensor}, backed by FingerprintManager.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+final class FrameworkFingerprintSensor implements FingerprintSensor {
+
+    private final Context context;
+    private FingerprintManager fingerprintManager;
+
+    FrameworkFingerprintSensor(@NonNull Context context) {
+        this.context = context.getApplicationContext();
+        fingerprintManager = this.context.getSystemService(FingerprintManager.class);
+    }
+
+    @SuppressWarnings("ResourceType")
+    @Override
+    public boolean isHardwareDetected() {
+        return fingerprintManager.isHardwareDetected();
+    }
+
+    @SuppressWarnings("ResourceType")
+    @Override
+    public boolean hasEnrolledFingerprints() {
+        return fingerprintManager.hasEnrolledFingerprints();
+    }
+
+    @SuppressWarnings("ResourceType")
+    @NonNull
+    @Override
+    public Request authenticate(@Nullable Cipher cipher, @Nullable Handler handler, @NonNull Callback callback) {
+        return authenticate(cipher != null ? new FingerprintManager.CryptoObject(cipher) : null, handler, callback);
+    }
+
+    @NonNull
+    @Override
+    public Request authenticate(@NonNull Signature signature, @Nullable Handler handler, @NonNull Callback callback) {
+        return authenticate(new FingerprintManager.CryptoObject(signature), handler, callback);
+    }
+
+    @SuppressWarnings("ResourceType")
+    private Request authenticate(@Nullable FingerprintManager.CryptoObject cryptoObject, @Nullable Handler handler, @NonNull final Callback callback) {
+        final CancellationSignal signal = new CancellationSignal();
+        fingerprintManager.authenticate(cryptoObject, signal, 0 /* flags */, new FingerprintManager.AuthenticationCallback() {
+            @Override
+            public void onAuthenticationError(int errorCode, CharSequence errString) {
+                // Start over with a fresh manager after an error
+                fingerprintManager = context.getSystemService(FingerprintManager.class);
+                callback.onError(errorCode, errString);
+            }
+
+            @Override
+            public void onAuthenticationHelp(int helpCode, CharSequence helpString) {
+                callback.onHelp(helpCode, helpString);
+            }
+
+            @Override
+            public void onAuthenticationSucceeded(FingerprintManager.AuthenticationResult result) {
+                FingerprintManager.CryptoObject cryptoObject = result.getCryptoObject();
+                callback.onSucceeded(cryptoObject != null ? cryptoObject.getCipher() : null);
+            }
+
+            @Override
+            public void onAuthenticationFailed() {
+                callback.onFailed();
+            }
+        }, handler);
+        return new Request() {
+            @Override
+            public void cancel() {
+                signal.cancel();
+            }
+        };
+    }
+}
@@ -0,0 +1,183 @@
+package com.afollestad.digitus;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyInfo;
+import android.security.keystore.KeyProperties;
+import android.support.annotation.Nullable;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.Key;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.UnrecoverableKeyException;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+
+/**
+ * Manages the lifecycle of the fingerprint-bound keys in the Android Key Store. Keys are reused
+ * across initializations and only generated when missing, or when explicitly rotated.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+class KeyManager {
+
+    private KeyManager() {
+    }
+
+    /**
+     * Makes sure a key exists for the instance's key name, generating one only if it's missing.
+     *
+     * @return {@code false} if the existing key was generated with another authentication validity
+     * than the one configured for the key name. It's left in place, only rotating replaces it.
+     */
+    static boolean ensureKey(DigitusBase digitus) {
+        final KeyStore keyStore = digitus.keyStore;
+        final KeyGenerator keyGenerator = digitus.keyGenerator;
+        final String keyName = digitus.keyName;
+        // Sessions on other threads may race to create the same key, only one of them should
+        synchronized (keyGenerator) {
+            final KeyInfo info = keyInfo(keyStore, keyName);
+            if (info == null) {
+                generateKey(keyStore, keyGenerator, keyName);
+                return true;
+            }
+            // The Key Store fixes the validity when the key is generated, so it's the key which
+            // remembers it across process restarts. Keys which need authentication for every use report -1.
+            return AuthSessionCache.adoptValidity(keyName, Math.max(0, info.getUserAuthenticationValidityDurationSeconds()));
+        }
+    }
+
+    /**
+     * @return the key name's key, or null if it's missing or was generated by an older version.
+     * Those used CBC, the GCM cipher can't use them and nothing was ever encrypted with them.
+     */
+    @Nullable
+    private static KeyInfo keyInfo(KeyStore keyStore, String keyName) {
+        try {
+            if (!keyStore.containsAlias(keyName)) return null;
+            Key key = CryptoCache.key(keyStore, keyName);
+            if (!(key instanceof SecretKey)) return null;
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(
+                    key.getAlgorithm(), CryptoCache.ANDROID_KEY_STORE);
+            KeyInfo info = (KeyInfo) factory.getKeySpec((SecretKey) key, KeyInfo.class);
+            return Arrays.asList(info.getBlockModes()).contains(KeyProperties.BLOCK_MODE_GCM) ? info : null;
+        } catch (UnrecoverableKeyException e) {
+            return null;
+        } catch (KeyStoreException | NoSuchAlgorithmException | NoSuchProviderException | InvalidKeySpecException e) {
+            // Never replace a key just because it couldn't be inspected
+            throw new RuntimeException("Failed to look up the key", e);
+        }
+    }
+
+    /**
+     * Creates a symmetric key in the Android Key Store which can only be used after the user has
+     * authenticated with fingerprint, with the validity configured for the key name. Replaces any
+     * existing key with the same name.
+     */
+    static void generateKey(KeyStore keyStore, KeyGenerator keyGenerator, String keyName) {
+        // The enrolling flow for fingerprint. This is where you ask the user to set up fingerprint
+        // for your flow. Use of keys is necessary if you need to know if the set of
+        // enrolled fingerprints has changed.
+        CryptoCache.evictKey(keyStore, keyName);
+        final long start = Metrics.start();
+        // The key generator is shared between sessions
+        synchronized (keyGenerator) {
+            // Set the alias of the entry in Android KeyStore where the key will appear
+            // and the constrains (purposes) in the constructor of the Builder
+            KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(keyName,
+                    KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                    .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                    // Require the user to authenticate with a fingerprint to authorize every use
+                    // of the key, or every use within a time window in session mode
+                    .setUserAuthenticationRequired(true)
+                    .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE);
+            final int validitySeconds = AuthSessionCache.getValidity(keyName);
+            if (validitySeconds > 0)
+                builder.setUserAuthenticationValidityDurationSeconds(validitySeconds);
+            KeyGenParameterSpec spec = builder.build();
+            try {
+                keyGenerator.init(spec);
+            } catch (InvalidAlgorithmParameterException e) {
+                throw new RuntimeException(e);
+            }
+            keyGenerator.generateKey();
+        }
+        Metrics.phase(keyName, DigitusMetrics.Phase.KEY_GENERATION, start);
+    }
+
+    /**
+     * @return the alias of the key name's signing key pair, which is kept apart from its AES key.
+     */
+    static String signingAlias(String keyName) {
+        return keyName + ".signing";
+    }
+
+    /**
+     * Makes sure the key name's signing key pair exists, generating one only if it's missing.
+     *
+     * @return {@code true} if an existing key pair was reused, {@code false} if a new one was generated.
+     */
+    static boolean ensureSigningKey(KeyStore keyStore, KeyPairGenerator keyPairGenerator, String keyName) {
+        final String alias = signingAlias(keyName);
+        synchronized (keyPairGenerator) {
+            try {
+                if (keyStore.containsAlias(alias)) return true;
+            } catch (KeyStoreException e) {
+                throw new RuntimeException("Failed to look up the signing key", e);
+            }
+            generateSigningKey(keyPairGenerator, alias, keyName);
+            return false;
+        }
+    }
+
+    /**
+     * Creates an EC P-256 key pair whose private key can only sign after the user has
+     * authenticated with fingerprint, once per authentication. The public key can be read
+     * from the key store at any time.
+     */
+    private static void generateSigningKey(KeyPairGenerator keyPairGenerator, String alias, String keyName) {
+        final long start = Metrics.start();
+        KeyGenParameterSpec spec = new KeyGenParameterSpec.Builder(alias, KeyProperties.PURPOSE_SIGN)
+                .setAlgorithmParameterSpec(new ECGenParameterSpec("secp256r1"))
+                .setDigests(KeyProperties.DIGEST_SHA256)
+                .setUserAuthenticationRequired(true)
+                .build();
+        try {
+            keyPairGenerator.initialize(spec);
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new RuntimeException(e);
+        }
+        keyPairGenerator.generateKeyPair();
+        Metrics.phase(keyName, DigitusMetrics.Phase.KEY_GENERATION, start);
+    }
+
+    static void deleteKey(KeyStore keyStore, String keyName) {
+        CryptoCache.evictKey(keyStore, keyName);
+        try {
+            if (keyStore.containsAlias(keyName))
+                keyStore.deleteEntry(keyName);
+        } catch (KeyStoreException e) {
+            throw new RuntimeException("Failed to delete the key", e);
+        }
+    }
+
+    /**
+     * Deletes the current key and generates a new one. Needed after new fingerprints are
+     * enrolled, since the Key Store permanently invalidates keys when that happens. The signing
+     * key pair is invalidated as well, so it's deleted and created again when it's next used.
+     */
+    static void rotateKey(DigitusBase digitus) {
+        deleteKey(digitus.keyStore, signingAlias(digitus.keyName));
+        deleteKey(digitus.keyStore, digitus.keyName);
+        generateKey(digitus.keyStore, digitus.keyGenerator, digitus.keyName);
+    }
+}
@@ -0,0 +1,63 @@
+package com.afollestad.digitus;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+
+/**
+ * Ties sessions to the Activity they were initialized from, so that a forgotten
+ * {@link Digitus#deinit()} doesn't keep the Activity alive through the session registry.
+ */
+final class LifecycleBinder {
+
+    /**
+     * The Application watched so far. Tests get a new Application for each test, which has to be
+     * watched too.
+     */
+    private static Application registered;
+
+    private LifecycleBinder() {
+    }
+
+    /**
+     * Starts watching Activities being destroyed. Only the first call for an Application has an
+     * effect.
+     */
+    static synchronized void register(@NonNull Context context) {
+        final Context appContext = context.getApplicationContext();
+        if (!(appContext instanceof Application) || appContext == registered) return;
+        registered = (Application) appContext;
+        registered.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+            @Override
+            public void onActivityDestroyed(Activity activity) {
+                Digitus.onActivityDestroyed(activity);
+            }
+
+            @Override
+            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+            }
+
+            @Override
+            public void onActivityStarted(Activity activity) {
+            }
+
+            @Override
+            public void onActivityResumed(Activity activity) {
+            }
+
+            @Override
+            public void onActivityPaused(Activity activity) {
+            }
+
+            @Override
+            public void onActivityStopped(Activity activity) {
+            }
+
+            @Override
+            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+            }
+        });
+    }
+}
@@ -5,25 +5,29 @@ import android.annotation.TargetApi;
 import android.app.KeyguardManager;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.hardware.fingerprint.FingerprintManager;
 import android.os.Build;
 import android.security.keystore.KeyPermanentlyInvalidatedException;
 import android.security.keystore.KeyProperties;
+import android.security.keystore.UserNotAuthenticatedException;
+import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
 
-import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
 import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
+import java.security.cert.Certificate;
 
 import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
 
 /**
  * @author Aidan Follestad (afollestad)
@@ -34,53 +38,127 @@ class MUtils {
     private MUtils() {
     }
 
-    static boolean isFingerprintRegistered(Digitus digitus) {
-        if (!isFingerprintAuthAvailable(digitus)) return false;
-        //noinspection ResourceType
-        return digitus.keyguardManager.isKeyguardSecure() && digitus.fingerprintManager.hasEnrolledFingerprints();
-    }
-
-    static boolean isFingerprintAuthAvailable(Digitus digitus) {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return false;
+    /**
+     * Queries the permission, sensor and keyguard. Each of these is a system call, so callers
+     * keep the result.
+     */
+    @SuppressWarnings("ResourceType")
+    static DigitusCapabilities queryCapabilities(DigitusBase digitus) {
         int granted = ContextCompat.checkSelfPermission(digitus.context, Manifest.permission.USE_FINGERPRINT);
-        if (granted != PackageManager.PERMISSION_GRANTED) return false;
-        //noinspection ResourceType
-        return digitus.fingerprintManager.isHardwareDetected();
+        if (granted != PackageManager.PERMISSION_GRANTED)
+            return new DigitusCapabilities(false, false, false, false);
+        final boolean hardwareDetected = digitus.sensor.isHardwareDetected();
+        if (!hardwareDetected)
+            return new DigitusCapabilities(true, false, false, false);
+        return new DigitusCapabilities(true, true,
+                digitus.keyguardManager.isKeyguardSecure(),
+                digitus.sensor.hasEnrolledFingerprints());
     }
 
+    static final String TRANSFORMATION = KeyProperties.KEY_ALGORITHM_AES + "/"
+            + KeyProperties.BLOCK_MODE_GCM + "/"
+            + KeyProperties.ENCRYPTION_PADDING_NONE;
+    static final int GCM_TAG_LENGTH_BITS = 128;
+
     static void initBase(Context context, DigitusBase digitus) {
         digitus.keyguardManager = context.getSystemService(KeyguardManager.class);
-        digitus.fingerprintManager = context.getSystemService(FingerprintManager.class);
+        final FingerprintSensor sensor = DigitusBase.sensorOverride;
+        digitus.sensor = sensor != null ? sensor : new FrameworkFingerprintSensor(context);
+        final long start = Metrics.start();
+        digitus.keyStore = CryptoCache.keyStore(CryptoCache.ANDROID_KEY_STORE);
+        digitus.keyGenerator = CryptoCache.keyGenerator(KeyProperties.KEY_ALGORITHM_AES, CryptoCache.ANDROID_KEY_STORE);
+        digitus.cipher = CryptoCache.acquireCipher(TRANSFORMATION, CryptoCache.POOL_KEY_STORE);
+        Metrics.phase(digitus.keyName, DigitusMetrics.Phase.PROVIDER_LOOKUP, start);
+    }
+
+    /**
+     * Does the expensive part of a session's setup ahead of time: provider lookups, opening the
+     * key store, pooling a cipher and loading the existing key's handle. It never creates or
+     * replaces a key, the app may not have configured the key name yet when this runs.
+     */
+    static void prewarm(String keyName) {
+        final long start = Metrics.start();
+        final KeyStore keyStore = CryptoCache.keyStore(CryptoCache.ANDROID_KEY_STORE);
+        CryptoCache.keyGenerator(KeyProperties.KEY_ALGORITHM_AES, CryptoCache.ANDROID_KEY_STORE);
+        CryptoCache.releaseCipher(TRANSFORMATION, CryptoCache.POOL_KEY_STORE,
+                CryptoCache.acquireCipher(TRANSFORMATION, CryptoCache.POOL_KEY_STORE));
+        Metrics.phase(keyName, DigitusMetrics.Phase.PROVIDER_LOOKUP, start);
         try {
-            digitus.keyStore = KeyStore.getInstance("AndroidKeyStore");
-        } catch (KeyStoreException e) {
-            throw new RuntimeException("Failed to get an instance of KeyStore", e);
+            if (keyStore.containsAlias(keyName))
+                CryptoCache.key(keyStore, keyName);
+        } catch (GeneralSecurityException e) {
+            // An unusable key is dealt with once a session starts
         }
+    }
+
+    static KeyPairGenerator keyPairGenerator() {
+        return CryptoCache.keyPairGenerator(KeyProperties.KEY_ALGORITHM_EC, CryptoCache.ANDROID_KEY_STORE);
+    }
+
+    /**
+     * Creates the signing key pair if needed, and initializes the session's signature with it.
+     *
+     * @return {@code false} if the key was invalidated by a new fingerprint or a lock screen change.
+     */
+    static boolean initSignature(DigitusBase digitus) {
         try {
-            digitus.keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
-        } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
-            throw new RuntimeException("Failed to get an instance of KeyGenerator", e);
+            KeyManager.ensureSigningKey(digitus.keyStore, keyPairGenerator(), digitus.keyName);
+            if (digitus.signature == null)
+                digitus.signature = Signature.getInstance(SignatureVerifier.ALGORITHM);
+            PrivateKey key = (PrivateKey) CryptoCache.key(digitus.keyStore, KeyManager.signingAlias(digitus.keyName));
+            digitus.signature.initSign(key);
+            return true;
+        } catch (KeyPermanentlyInvalidatedException e) {
+            return false;
+        } catch (UnrecoverableKeyException | InvalidKeyException | NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to init Signature", e);
         }
+    }
+
+    static PublicKey getPublicKey(DigitusBase digitus) {
+        KeyManager.ensureSigningKey(digitus.keyStore, keyPairGenerator(), digitus.keyName);
         try {
-            digitus.cipher = Cipher.getInstance(KeyProperties.KEY_ALGORITHM_AES + "/"
-                    + KeyProperties.BLOCK_MODE_CBC + "/"
-                    + KeyProperties.ENCRYPTION_PADDING_PKCS7);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-            throw new RuntimeException("Failed to get an instance of Cipher", e);
+            Certificate certificate = digitus.keyStore.getCertificate(KeyManager.signingAlias(digitus.keyName));
+            return certificate != null ? certificate.getPublicKey() : null;
+        } catch (KeyStoreException e) {
+            throw new RuntimeException("Failed to get the public key", e);
         }
     }
 
-    static boolean initCipher(DigitusBase digitus) {
+    static void deinitBase(DigitusBase digitus) {
+        CryptoCache.releaseCipher(TRANSFORMATION, CryptoCache.POOL_KEY_STORE, digitus.cipher);
+    }
+
+    static boolean initCipher(DigitusBase digitus, int mode, @Nullable byte[] iv) {
         try {
-            digitus.keyStore.load(null);
-            SecretKey key = (SecretKey) digitus.keyStore.getKey(digitus.keyName, null);
-            digitus.cipher.init(Cipher.ENCRYPT_MODE, key);
+            SecretKey key = (SecretKey) CryptoCache.key(digitus.keyStore, digitus.keyName);
+            if (mode == Cipher.DECRYPT_MODE) {
+                digitus.cipher.init(mode, key, new GCMParameterSpec(GCM_TAG_LENGTH_BITS, iv));
+            } else {
+                // The Key Store generates a random IV, callers retrieve it with getIv()
+                digitus.cipher.init(mode, key);
+            }
             return true;
         } catch (KeyPermanentlyInvalidatedException e) {
             return false;
-        } catch (KeyStoreException | CertificateException | UnrecoverableKeyException | IOException
-                | NoSuchAlgorithmException | InvalidKeyException e) {
+        } catch (UnrecoverableKeyException | InvalidKeyException | InvalidAlgorithmParameterException e) {
             throw new RuntimeException("Failed to init Cipher", e);
         }
     }
+
+    /**
+     * Initializes the cipher of a session mode key, which can only happen after the user has
+     * authenticated within the key's validity window.
+     *
+     * @return {@code false} if the window has passed, or the key was invalidated.
+     */
+    static boolean initSessionCipher(DigitusBase digitus) {
+        try {
+            return initCipher(digitus, digitus.cipherMode, digitus.cipherIv);
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof UserNotAuthenticatedException)
+                return false;
+            throw e;
+        }
+    }
 }
@@ -0,0 +1,92 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+/**
+ * Proves that one payload is part of a {@link SignedBatch}, so the payload can be checked on its
+ * own against the batch's signed root without the rest of the batch.
+ */
+public final class MerkleProof {
+
+    private static final int VERSION = 1;
+    private static final int HASH_SIZE = 32;
+
+    private final int index;
+    private final int size;
+    private final byte[][] siblings;
+
+    MerkleProof(int index, int size, @NonNull byte[][] siblings) {
+        this.index = index;
+        this.size = size;
+        this.siblings = siblings;
+    }
+
+    /**
+     * @return the payload's position in the batch.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the number of payloads in the batch.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return whether the item is the payload at {@link #getIndex()} of the batch with this root.
+     * The root itself still needs to be checked against the batch signature, see
+     * {@link SignatureVerifier#verify(java.security.PublicKey, byte[], MerkleProof, byte[], byte[])}.
+     */
+    public boolean verify(@NonNull byte[] item, @NonNull byte[] root) {
+        final byte[] computed = MerkleTree.rootFromProof(item, index, size, siblings);
+        return computed != null && MessageDigest.isEqual(computed, root);
+    }
+
+    @NonNull
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeInt(index);
+            out.writeInt(size);
+            out.writeByte(siblings.length);
+            for (byte[] sibling : siblings)
+                out.write(sibling);
+            out.flush();
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @NonNull
+    public static MerkleProof fromByteArray(@NonNull byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int version = in.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported proof version: " + version);
+        int index = in.readInt();
+        int size = in.readInt();
+        if (size <= 0 || index < 0 || index >= size)
+            throw new IOException("Invalid index " + index + " for " + size + " items");
+        int count = in.readUnsignedByte();
+        if (count * HASH_SIZE > in.available())
+            throw new IOException("Invalid sibling count: " + count);
+        byte[][] siblings = new byte[count][HASH_SIZE];
+        for (byte[] sibling : siblings)
+            in.readFully(sibling);
+        return new MerkleProof(index, size, siblings);
+    }
+}
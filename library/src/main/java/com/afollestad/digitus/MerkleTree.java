@@ -0,0 +1,120 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.NonNull;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * A SHA-256 Merkle tree over a batch of payloads, so that one signature over the root covers all
+ * of them. Leaves and inner nodes are hashed with different prefixes, so a node can't be passed
+ * off as a payload. A node without a sibling moves up a level unchanged, rather than being paired
+ * with itself.
+ */
+final class MerkleTree {
+
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    /**
+     * Every level of the tree, from the leaves up to the root.
+     */
+    private final byte[][][] levels;
+
+    MerkleTree(@NonNull List<byte[]> items) {
+        if (items.isEmpty())
+            throw new IllegalArgumentException("A batch needs at least one item.");
+        final MessageDigest digest = newDigest();
+        byte[][] level = new byte[items.size()][];
+        for (int i = 0; i < level.length; i++)
+            level[i] = leafHash(digest, items.get(i));
+
+        int height = 1;
+        for (int size = level.length; size > 1; size = (size + 1) / 2)
+            height++;
+        levels = new byte[height][][];
+        levels[0] = level;
+        for (int l = 1; l < height; l++) {
+            final byte[][] below = levels[l - 1];
+            level = new byte[(below.length + 1) / 2][];
+            for (int i = 0; i < level.length; i++) {
+                final int left = i * 2;
+                level[i] = left + 1 < below.length ?
+                        nodeHash(digest, below[left], below[left + 1]) : below[left];
+            }
+            levels[l] = level;
+        }
+    }
+
+    int size() {
+        return levels[0].length;
+    }
+
+    @NonNull
+    byte[] root() {
+        return levels[levels.length - 1][0];
+    }
+
+    /**
+     * @return the siblings on the path from the item's leaf to the root, skipping levels where
+     * the path has no sibling.
+     */
+    @NonNull
+    MerkleProof proof(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("Index " + index + " is out of bounds for " + size() + " items.");
+        final byte[][] path = new byte[levels.length - 1][];
+        int count = 0;
+        int position = index;
+        for (int l = 0; l < levels.length - 1; l++) {
+            final int sibling = position ^ 1;
+            if (sibling < levels[l].length)
+                path[count++] = levels[l][sibling];
+            position /= 2;
+        }
+        final byte[][] siblings = new byte[count][];
+        System.arraycopy(path, 0, siblings, 0, count);
+        return new MerkleProof(index, size(), siblings);
+    }
+
+    /**
+     * Walks up from the item's leaf the same way the tree was built.
+     *
+     * @return the root the proof leads to, or null if the proof doesn't fit the tree's shape.
+     */
+    static byte[] rootFromProof(@NonNull byte[] item, int index, int size, @NonNull byte[][] siblings) {
+        if (index < 0 || index >= size) return null;
+        final MessageDigest digest = newDigest();
+        byte[] hash = leafHash(digest, item);
+        int used = 0;
+        for (int position = index, levelSize = size; levelSize > 1; position /= 2, levelSize = (levelSize + 1) / 2) {
+            final int sibling = position ^ 1;
+            if (sibling >= levelSize) continue;
+            if (used == siblings.length) return null;
+            hash = (position & 1) == 0 ?
+                    nodeHash(digest, hash, siblings[used++]) :
+                    nodeHash(digest, siblings[used++], hash);
+        }
+        return used == siblings.length ? hash : null;
+    }
+
+    private static byte[] leafHash(MessageDigest digest, byte[] item) {
+        digest.update(LEAF_PREFIX);
+        return digest.digest(item);
+    }
+
+    private static byte[] nodeHash(MessageDigest digest, byte[] left, byte[] right) {
+        digest.update(NODE_PREFIX);
+        digest.update(left);
+        return digest.digest(right);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to get an instance of MessageDigest", e);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Reports to the installed {@link DigitusMetrics} sink. Without a sink every call is a single
+ * volatile read, so the hooks can stay in production builds.
+ */
+final class Metrics {
+
+    private static volatile DigitusMetrics sink;
+
+    private Metrics() {
+    }
+
+    static void setSink(@Nullable DigitusMetrics metrics) {
+        sink = metrics;
+    }
+
+    /**
+     * @return a start time to pass to {@link #phase(String, DigitusMetrics.Phase, long)}, or 0 if
+     * nothing is being recorded.
+     */
+    static long start() {
+        return sink != null ? System.nanoTime() : 0;
+    }
+
+    static void phase(@Nullable String keyName, DigitusMetrics.Phase phase, long startNanos) {
+        final DigitusMetrics metrics = sink;
+        if (metrics == null || startNanos == 0 || keyName == null) return;
+        metrics.onPhase(keyName, phase, System.nanoTime() - startNanos);
+    }
+
+    static void event(@Nullable String keyName, DigitusMetrics.Event event) {
+        final DigitusMetrics metrics = sink;
+        if (metrics == null || keyName == null) return;
+        metrics.onEvent(keyName, event);
+    }
+}
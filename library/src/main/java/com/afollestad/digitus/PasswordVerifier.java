@@ -0,0 +1,197 @@
+package com.afollestad.digitus;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+import android.util.Base64;
+import android.util.Log;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Stores a salted PBKDF2 hash of a backup password for a key name, and checks passwords against it.
+ * {@link FingerprintDialog} verifies passwords with this on its own once one is set.
+ * <p>
+ * The iteration count is calibrated once per device so that a check takes about
+ * {@link #TARGET_MILLIS}, and is saved with each hash so that hashes stay valid if it changes.
+ */
+public final class PasswordVerifier {
+
+    public interface Callback {
+        void onPasswordVerified(boolean valid);
+    }
+
+    static final long TARGET_MILLIS = 250;
+
+    private static final String PREFS_NAME = "[DIGITUS_PASSWORDS]";
+    private static final String CALIBRATED_ITERATIONS = "calibrated_iterations";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final int SALT_SIZE = 16;
+    /**
+     * The output size of HMAC-SHA1. Asking for more makes PBKDF2 run again for every extra block,
+     * while an attacker can check a guess against the first block alone.
+     */
+    private static final int HASH_BITS = 160;
+    private static final int MIN_ITERATIONS = 10000;
+    private static final int CALIBRATION_ITERATIONS = 2000;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final SharedPreferences prefs;
+    private final String keyName;
+
+    public PasswordVerifier(@NonNull Context context, @NonNull String keyName) {
+        this.prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.keyName = keyName;
+    }
+
+    public boolean isEnrolled() {
+        return prefs.contains(keyName + ":hash");
+    }
+
+    /**
+     * Replaces the stored password. This is as slow as a verification (slower the first time,
+     * while calibrating), so don't call it on the main thread.
+     */
+    @WorkerThread
+    public void setPassword(@NonNull String password) {
+        final int iterations = getIterations();
+        final byte[] salt = new byte[SALT_SIZE];
+        random.nextBytes(salt);
+        final byte[] hash = hash(password, salt, iterations);
+        prefs.edit()
+                .putString(keyName + ":hash", Base64.encodeToString(hash, Base64.NO_WRAP))
+                .putString(keyName + ":salt", Base64.encodeToString(salt, Base64.NO_WRAP))
+                .putInt(keyName + ":iterations", iterations)
+                .apply();
+    }
+
+    public void clear() {
+        prefs.edit()
+                .remove(keyName + ":hash")
+                .remove(keyName + ":salt")
+                .remove(keyName + ":iterations")
+                .apply();
+    }
+
+    /**
+     * @return whether the password matches the stored one, false if none is stored.
+     */
+    @WorkerThread
+    public boolean verify(@NonNull String password) {
+        final String storedHash = prefs.getString(keyName + ":hash", null);
+        final String storedSalt = prefs.getString(keyName + ":salt", null);
+        if (storedHash == null || storedSalt == null) return false;
+        final byte[] expected = Base64.decode(storedHash, Base64.NO_WRAP);
+        final byte[] salt = Base64.decode(storedSalt, Base64.NO_WRAP);
+        final int iterations = prefs.getInt(keyName + ":iterations", MIN_ITERATIONS);
+        return constantTimeEquals(expected, hash(password, salt, iterations));
+    }
+
+    /**
+     * Verifies the password in the background, and delivers the result on the main thread unless
+     * the returned Future is cancelled first. A failure to hash it is delivered as a mismatch.
+     */
+    @MainThread
+    public Future<Boolean> verify(@NonNull String password, @NonNull Callback callback) {
+        final VerifyTask task = new VerifyTask(this, password, callback);
+        DigitusExecutors.crypto().execute(task);
+        return task;
+    }
+
+    private int getIterations() {
+        int iterations = prefs.getInt(CALIBRATED_ITERATIONS, 0);
+        if (iterations == 0) {
+            iterations = calibrate();
+            prefs.edit().putInt(CALIBRATED_ITERATIONS, iterations).apply();
+        }
+        return iterations;
+    }
+
+    /**
+     * Times a short run of the hash to estimate how many iterations fit in {@link #TARGET_MILLIS}.
+     */
+    private static int calibrate() {
+        final byte[] salt = new byte[SALT_SIZE];
+        // The first run pays for loading the provider
+        hash("calibration", salt, 1);
+        final long start = SystemClock.elapsedRealtime();
+        hash("calibration", salt, CALIBRATION_ITERATIONS);
+        final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        final long iterations = CALIBRATION_ITERATIONS * TARGET_MILLIS / elapsed;
+        return (int) Math.max(MIN_ITERATIONS, Math.min(Integer.MAX_VALUE, iterations));
+    }
+
+    private static byte[] hash(String password, byte[] salt, int iterations) {
+        final PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Failed to hash the password.", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static boolean constantTimeEquals(byte[] a, byte[] b) {
+        if (a.length != b.length) return false;
+        int result = 0;
+        for (int i = 0; i < a.length; i++)
+            result |= a[i] ^ b[i];
+        return result == 0;
+    }
+
+    private static final class VerifyTask extends FutureTask<Boolean> {
+
+        private final Callback callback;
+        // The hash can't be interrupted, and may already be done when the task is cancelled
+        private volatile boolean abandoned;
+
+        VerifyTask(final PasswordVerifier verifier, final String password, Callback callback) {
+            super(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return verifier.verify(password);
+                }
+            });
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            abandoned = true;
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) return;
+            DigitusExecutors.postToMain(new Runnable() {
+                @Override
+                public void run() {
+                    if (abandoned) return;
+                    boolean valid;
+                    try {
+                        valid = get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        // Crashing the dialog's host over it wouldn't help, the password just isn't accepted
+                        Log.w(DigitusBase.TAG, "Failed to verify the password", e);
+                        valid = false;
+                    }
+                    callback.onPasswordVerified(valid);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.afollestad.digitus;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.support.annotation.ColorInt;
+import android.support.annotation.MainThread;
+import android.support.v4.content.ContextCompat;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Colors used by the fingerprint dialogs, resolved once per theme so that showing an error
+ * doesn't have to go through the theme's styled attributes again.
+ */
+final class PromptColors {
+
+    private static final Map<Resources.Theme, PromptColors> CACHE = new WeakHashMap<>();
+
+    @ColorInt final int warning;
+    @ColorInt final int success;
+    @ColorInt final int error;
+    @ColorInt final int textSecondary;
+
+    private PromptColors(Context context) {
+        warning = ContextCompat.getColor(context, R.color.warning_color);
+        success = ContextCompat.getColor(context, R.color.success_color);
+        error = ContextCompat.getColor(context, R.color.material_red_500);
+        textSecondary = Utils.resolveColor(context, android.R.attr.textColorSecondary);
+    }
+
+    @MainThread
+    static PromptColors get(Context context) {
+        final Resources.Theme theme = context.getTheme();
+        PromptColors colors = CACHE.get(theme);
+        if (colors == null) {
+            colors = new PromptColors(context);
+            CACHE.put(theme, colors);
+        }
+        return colors;
+    }
+}
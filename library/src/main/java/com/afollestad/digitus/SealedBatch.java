@@ -0,0 +1,121 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A set of secrets encrypted together, so that all of them can be decrypted with a single
+ * fingerprint authentication. Each item is encrypted with a random data key, which is in turn
+ * encrypted (wrapped) by the fingerprint-bound key in the Android Key Store.
+ */
+public final class SealedBatch {
+
+    private static final int VERSION = 1;
+
+    private final byte[] iv;
+    private final byte[] wrappedKey;
+    private final byte[] batchId;
+    private final List<byte[]> items;
+
+    SealedBatch(@NonNull byte[] iv, @NonNull byte[] wrappedKey, @NonNull byte[] batchId, @NonNull List<byte[]> items) {
+        this.iv = iv;
+        this.wrappedKey = wrappedKey;
+        this.batchId = batchId;
+        this.items = Collections.unmodifiableList(items);
+    }
+
+    /**
+     * @return the IV to pass to {@link Digitus#startListening(byte[])} before calling
+     * {@link Digitus#decryptBatch(SealedBatch)}.
+     */
+    @NonNull
+    public byte[] getIv() {
+        return iv.clone();
+    }
+
+    @NonNull
+    byte[] getWrappedKey() {
+        return wrappedKey;
+    }
+
+    /**
+     * A random ID authenticated by every item, along with the item count.
+     */
+    @NonNull
+    byte[] getBatchId() {
+        return batchId;
+    }
+
+    /**
+     * @return the encrypted items, in the order they were given to
+     * {@link Digitus#encryptBatch(List)}.
+     */
+    @NonNull
+    public List<byte[]> getItems() {
+        return items;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    @NonNull
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            writeBytes(out, iv);
+            writeBytes(out, wrappedKey);
+            writeBytes(out, batchId);
+            out.writeInt(items.size());
+            for (byte[] item : items)
+                writeBytes(out, item);
+            out.flush();
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @NonNull
+    public static SealedBatch fromByteArray(@NonNull byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int version = in.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported batch version: " + version);
+        byte[] iv = readBytes(in);
+        byte[] wrappedKey = readBytes(in);
+        byte[] batchId = readBytes(in);
+        int count = in.readInt();
+        if (count < 0)
+            throw new IOException("Invalid item count: " + count);
+        List<byte[]> items = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++)
+            items.add(readBytes(in));
+        return new SealedBatch(iv, wrappedKey, batchId, items);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available())
+            throw new IOException("Invalid length: " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,66 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of the active {@link Digitus} sessions, keyed by their key name. Sessions for
+ * different keys can coexist, and re-initializing a key that already has a session reuses it.
+ */
+final class SessionRegistry {
+
+    private static final Map<String, Digitus> sessions = new LinkedHashMap<>();
+    private static Digitus current;
+
+    private SessionRegistry() {
+    }
+
+    @Nullable
+    static synchronized Digitus get(@NonNull String keyName) {
+        return sessions.get(keyName);
+    }
+
+    /**
+     * @return the most recently initialized session, or null if there are none.
+     */
+    @Nullable
+    static synchronized Digitus current() {
+        return current;
+    }
+
+    static synchronized void put(@NonNull String keyName, @NonNull Digitus session) {
+        sessions.put(keyName, session);
+        current = session;
+    }
+
+    /**
+     * Marks an existing session as the most recently used one.
+     */
+    static synchronized void touch(@NonNull Digitus session) {
+        if (sessions.containsValue(session))
+            current = session;
+    }
+
+    static synchronized boolean contains(@NonNull Digitus session) {
+        return sessions.containsValue(session);
+    }
+
+    static synchronized void remove(@NonNull String keyName) {
+        Digitus removed = sessions.remove(keyName);
+        if (removed != null && removed == current) {
+            current = null;
+            // Fall back to the most recently added session that's still alive
+            for (Digitus session : sessions.values())
+                current = session;
+        }
+    }
+
+    static synchronized List<Digitus> all() {
+        return new ArrayList<>(sessions.values());
+    }
+}
@@ -0,0 +1,100 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * The server's side of signing mode: creates nonces and checks the signatures returned by
+ * {@link Digitus#sign()}. It only uses standard JCA classes, so the same code works in a backend
+ * or as a stand-in for one in tests.
+ * <p>
+ * Nonces and batch roots are signed behind different context labels, so a signature over one
+ * can't be passed off as the other. A batch signature also covers the number of items.
+ */
+public final class SignatureVerifier {
+
+    static final String ALGORITHM = "SHA256withECDSA";
+    private static final int NONCE_SIZE = 32;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] NONCE_CONTEXT = "Digitus nonce v1\0".getBytes(UTF_8);
+    private static final byte[] BATCH_CONTEXT = "Digitus batch v1\0".getBytes(UTF_8);
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private SignatureVerifier() {
+    }
+
+    /**
+     * @return a random challenge to send to the device. Never accept a signature over the same
+     * nonce twice.
+     */
+    @NonNull
+    public static byte[] newNonce() {
+        final byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    /**
+     * @param encoded the X.509 encoding of the public key, from {@link PublicKey#getEncoded()}.
+     */
+    @NonNull
+    public static PublicKey decodePublicKey(@NonNull byte[] encoded) throws GeneralSecurityException {
+        return KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    /**
+     * @return whether the signature was made over the nonce by the private key of publicKey.
+     */
+    public static boolean verify(@NonNull PublicKey publicKey, @NonNull byte[] nonce, @NonNull byte[] signature) throws GeneralSecurityException {
+        return verifyMessage(publicKey, nonceMessage(nonce), signature);
+    }
+
+    /**
+     * Checks one payload of a {@link SignedBatch}: that the root and the batch size in the proof
+     * were signed by the private key of publicKey, and that the proof places the item under that root.
+     */
+    public static boolean verify(@NonNull PublicKey publicKey, @NonNull byte[] item, @NonNull MerkleProof proof,
+                                 @NonNull byte[] root, @NonNull byte[] signature) throws GeneralSecurityException {
+        return proof.verify(item, root) &&
+                verifyMessage(publicKey, batchMessage(root, proof.getSize()), signature);
+    }
+
+    /**
+     * @return what's actually signed for a nonce.
+     */
+    static byte[] nonceMessage(@NonNull byte[] nonce) {
+        return ByteBuffer.allocate(NONCE_CONTEXT.length + nonce.length)
+                .put(NONCE_CONTEXT).put(nonce).array();
+    }
+
+    /**
+     * @return what's actually signed for a batch, so the root can't be claimed for a batch of
+     * another size.
+     */
+    static byte[] batchMessage(@NonNull byte[] root, int count) {
+        return ByteBuffer.allocate(BATCH_CONTEXT.length + 4 + root.length)
+                .put(BATCH_CONTEXT).putInt(count).put(root).array();
+    }
+
+    private static boolean verifyMessage(PublicKey publicKey, byte[] message, byte[] signature) throws GeneralSecurityException {
+        final Signature verifier = Signature.getInstance(ALGORITHM);
+        verifier.initVerify(publicKey);
+        verifier.update(message);
+        try {
+            return verifier.verify(signature);
+        } catch (SignatureException e) {
+            // Not even a well-formed signature
+            return false;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A batch of payloads authorized with a single fingerprint and a single signature. The signature
+ * covers the root of a Merkle tree over the payloads, and each payload comes with a
+ * {@link MerkleProof} so your server can accept them one at a time.
+ */
+public final class SignedBatch {
+
+    private final MerkleTree tree;
+    private final byte[] signature;
+
+    SignedBatch(@NonNull MerkleTree tree, @NonNull byte[] signature) {
+        this.tree = tree;
+        this.signature = signature;
+    }
+
+    /**
+     * @return the Merkle root, which was signed together with {@link #size()}.
+     */
+    @NonNull
+    public byte[] getRoot() {
+        return tree.root().clone();
+    }
+
+    /**
+     * @return the ECDSA signature over {@link #getRoot()} and {@link #size()}.
+     */
+    @NonNull
+    public byte[] getSignature() {
+        return signature.clone();
+    }
+
+    /**
+     * @return the proof for the payload at the index, in the order they were given to
+     * {@link Digitus#startSigning(java.util.List)}.
+     */
+    @NonNull
+    public MerkleProof getProof(int index) {
+        return tree.proof(index);
+    }
+
+    public int size() {
+        return tree.size();
+    }
+}
@@ -0,0 +1,105 @@
+package com.afollestad.digitus;
+
+import android.app.Dialog;
+import android.support.annotation.ColorInt;
+import android.support.annotation.DrawableRes;
+import android.support.annotation.NonNull;
+import android.support.annotation.StringRes;
+import android.support.v4.app.FragmentActivity;
+import android.support.v4.widget.TextViewCompat;
+import android.support.v7.app.AppCompatDialog;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.Window;
+import android.widget.Button;
+import android.widget.TextView;
+
+/**
+ * A fingerprint dialog like {@link FingerprintDialog}, built from a single flat layout on a plain
+ * {@link AppCompatDialog} rather than a MaterialDialog. It inflates faster, and doesn't depend on
+ * the material-dialogs library at all.
+ */
+public class SlimFingerprintDialog extends FingerprintDialogBase {
+
+    private TextView title;
+    private View fingerprintDescription;
+    private Button positiveButton;
+    private Button negativeButton;
+
+    public SlimFingerprintDialog() {
+    }
+
+    public static <T extends FragmentActivity & Callback> SlimFingerprintDialog show(T context, String keyName, int requestCode) {
+        return show(context, keyName, requestCode, true);
+    }
+
+    public static <T extends FragmentActivity & Callback> SlimFingerprintDialog show(T context, String keyName, int requestCode, boolean cancelable) {
+        return show(context, new SlimFingerprintDialog(), keyName, requestCode, cancelable);
+    }
+
+    @Override public void setTitle(@NonNull CharSequence title) {
+        if (this.title != null) this.title.setText(title);
+    }
+
+    @Override public void setTitle(@StringRes int titleRes) {
+        if (title != null) title.setText(titleRes);
+    }
+
+    @Override Dialog createDialog(boolean cancelable) {
+        final AppCompatDialog dialog = new AppCompatDialog(getActivity());
+        dialog.supportRequestWindowFeature(Window.FEATURE_NO_TITLE);
+        final View v = LayoutInflater.from(dialog.getContext()).inflate(R.layout.fingerprint_dialog_slim, null);
+        dialog.setContentView(v);
+
+        title = (TextView) v.findViewById(R.id.title);
+        fingerprintDescription = v.findViewById(R.id.fingerprint_description);
+        positiveButton = (Button) v.findViewById(R.id.button_positive);
+        positiveButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                dialog.cancel();
+            }
+        });
+        negativeButton = (Button) v.findViewById(R.id.button_negative);
+        negativeButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                onNegative();
+            }
+        });
+        bindViews(v);
+        return dialog;
+    }
+
+    @Override void showContent(boolean fingerprint) {
+        final int fingerprintVisibility = fingerprint ? View.VISIBLE : View.GONE;
+        final int backupVisibility = fingerprint ? View.GONE : View.VISIBLE;
+        fingerprintDescription.setVisibility(fingerprintVisibility);
+        fingerprintStatus.setVisibility(fingerprintVisibility);
+        passwordDescriptionTextView.setVisibility(backupVisibility);
+        password.setVisibility(backupVisibility);
+        // Only shown for NEW_FINGERPRINT_ENROLLED, updateStage() brings them back
+        newFingerprintEnrolledTextView.setVisibility(View.GONE);
+        useFingerprintFutureCheckBox.setVisibility(View.GONE);
+    }
+
+    @Override void setButtons(@StringRes int positive, @StringRes int negative) {
+        positiveButton.setText(positive);
+        negativeButton.setText(negative);
+    }
+
+    @Override void toggleButtonsEnabled(boolean enabled) {
+        positiveButton.setEnabled(enabled);
+        negativeButton.setEnabled(enabled);
+    }
+
+    @Override void setFingerprintIcon(@DrawableRes int icon) {
+        TextViewCompat.setCompoundDrawablesRelativeWithIntrinsicBounds(fingerprintStatus, icon, 0, 0, 0);
+    }
+
+    @Override void showPasswordError(@ColorInt int color) {
+        passwordDescriptionTextView.setTextColor(color);
+        positiveButton.setTextColor(color);
+        negativeButton.setTextColor(color);
+    }
+}
@@ -0,0 +1,213 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.NonNull;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Streams encrypted in separately authenticated chunks under a random data key, the same way as
+ * {@link BatchCrypto}. The Key Store cipher only wraps the data key, so a stream of any size costs
+ * one TEE operation, and each chunk is released as soon as its own tag checks out rather than once
+ * the whole stream has been read.
+ * <p>
+ * The stream is the wrapped key followed by the chunks, each prefixed with its sealed length. The
+ * last chunk is flagged in its length, and the flag and chunk index are authenticated, so chunks
+ * can't be reordered, dropped or truncated.
+ */
+final class StreamCrypto {
+
+    static final int CHUNK_SIZE = 64 * 1024;
+    private static final int FINAL_FLAG = 0x80000000;
+    private static final int MAX_WRAPPED_KEY_LENGTH = 1024;
+    private static final int MAX_SEALED_LENGTH = CHUNK_SIZE + 64;
+
+    private StreamCrypto() {
+    }
+
+    /**
+     * @param keyCipher the authenticated Key Store cipher, used once to wrap the data key.
+     */
+    static OutputStream encrypt(@NonNull OutputStream out, @NonNull Cipher keyCipher) throws GeneralSecurityException {
+        final SecretKey dataKey = BatchCrypto.newDataKey();
+        final byte[] wrappedKey = keyCipher.doFinal(dataKey.getEncoded());
+        return new EncryptingStream(out, dataKey, wrappedKey);
+    }
+
+    /**
+     * @param keyCipher the authenticated Key Store cipher, used once to unwrap the data key when
+     *                  the stream is first read.
+     */
+    static InputStream decrypt(@NonNull InputStream in, @NonNull Cipher keyCipher) {
+        return new DecryptingStream(in, keyCipher);
+    }
+
+    private static byte[] associatedData(int index, boolean last) {
+        return new byte[]{(byte) (index >>> 24), (byte) (index >>> 16), (byte) (index >>> 8), (byte) index,
+                (byte) (last ? 1 : 0)};
+    }
+
+    private static final class EncryptingStream extends OutputStream {
+
+        private final DataOutputStream out;
+        private final SecretKey dataKey;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private byte[] wrappedKey;
+        private int buffered;
+        private int index;
+        private boolean closed;
+
+        EncryptingStream(OutputStream out, SecretKey dataKey, byte[] wrappedKey) {
+            this.out = new DataOutputStream(out);
+            this.dataKey = dataKey;
+            this.wrappedKey = wrappedKey;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (closed)
+                throw new IOException("The stream is closed.");
+            while (len > 0) {
+                // A full chunk is only sealed once more data arrives, the last one is flagged on close()
+                if (buffered == CHUNK_SIZE)
+                    writeChunk(false);
+                final int count = Math.min(len, CHUNK_SIZE - buffered);
+                System.arraycopy(b, off, buffer, buffered, count);
+                buffered += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        private void writeChunk(boolean last) throws IOException {
+            if (wrappedKey != null) {
+                out.writeInt(wrappedKey.length);
+                out.write(wrappedKey);
+                wrappedKey = null;
+            }
+            final byte[] sealed;
+            try {
+                sealed = BatchCrypto.seal(dataKey, associatedData(index++, last), Arrays.copyOf(buffer, buffered));
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+            out.writeInt(last ? sealed.length | FINAL_FLAG : sealed.length);
+            out.write(sealed);
+            buffered = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                writeChunk(true);
+                Arrays.fill(buffer, (byte) 0);
+                out.flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static final class DecryptingStream extends InputStream {
+
+        private final DataInputStream in;
+        private Cipher keyCipher;
+        private SecretKey dataKey;
+        private byte[] chunk;
+        private int position;
+        private int index;
+        private boolean last;
+
+        DecryptingStream(InputStream in, Cipher keyCipher) {
+            this.in = new DataInputStream(in);
+            this.keyCipher = keyCipher;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (chunk == null || position == chunk.length) {
+                if (last) return -1;
+                readChunk();
+            }
+            final int count = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return chunk != null ? chunk.length - position : 0;
+        }
+
+        private void readChunk() throws IOException {
+            try {
+                if (dataKey == null)
+                    unwrapKey();
+                final int header;
+                try {
+                    header = in.readInt();
+                } catch (EOFException e) {
+                    throw new IOException("The encrypted stream was truncated.", e);
+                }
+                final boolean isLast = (header & FINAL_FLAG) != 0;
+                final int length = header & ~FINAL_FLAG;
+                if (length > MAX_SEALED_LENGTH)
+                    throw new IOException("Invalid chunk length: " + length);
+                final byte[] sealed = new byte[length];
+                in.readFully(sealed);
+                chunk = BatchCrypto.open(dataKey, associatedData(index++, isLast), sealed, 0, length);
+                position = 0;
+                last = isLast;
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Failed to decrypt the stream.", e);
+            }
+        }
+
+        private void unwrapKey() throws IOException, GeneralSecurityException {
+            final int length = in.readInt();
+            if (length <= 0 || length > MAX_WRAPPED_KEY_LENGTH)
+                throw new IOException("Invalid wrapped key length: " + length);
+            final byte[] wrappedKey = new byte[length];
+            in.readFully(wrappedKey);
+            final byte[] rawKey = keyCipher.doFinal(wrappedKey);
+            keyCipher = null;
+            dataKey = BatchCrypto.dataKey(rawKey);
+            Arrays.fill(rawKey, (byte) 0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            chunk = null;
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.afollestad.digitus;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The on-disk index of a {@link DigitusVault}: a header followed by (key hash, record offset)
+ * entries sorted by hash. The header names the segment generation it was built for, so an index
+ * left behind by an interrupted compaction isn't trusted. The file is memory-mapped and binary
+ * searched, so opening a vault doesn't read the index into the heap.
+ */
+final class VaultIndex {
+
+    private static final int MAGIC = 0x44475849; // DGXI
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+    private static final int ENTRY_SIZE = 16;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final long coveredLength;
+    private final long garbageBytes;
+    private final long generation;
+
+    private VaultIndex(ByteBuffer buffer, int count, long coveredLength, long garbageBytes, long generation) {
+        this.buffer = buffer;
+        this.count = count;
+        this.coveredLength = coveredLength;
+        this.garbageBytes = garbageBytes;
+        this.generation = generation;
+    }
+
+    /**
+     * Maps the index file, or returns an empty index if it doesn't exist or can't be trusted.
+     */
+    static VaultIndex open(@NonNull File file) throws IOException {
+        if (!file.exists() || file.length() < HEADER_SIZE)
+            return empty();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+                return empty();
+            int count = buffer.getInt(8);
+            if (count < 0 || HEADER_SIZE + (long) count * ENTRY_SIZE > buffer.capacity())
+                return empty();
+            return new VaultIndex(buffer, count, buffer.getLong(16), buffer.getLong(24), buffer.getLong(32));
+        } finally {
+            // The mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    static VaultIndex empty() {
+        return new VaultIndex(ByteBuffer.allocate(0), 0, 0, 0, 0);
+    }
+
+    /**
+     * Writes a new index, replacing the old file atomically.
+     *
+     * @param hashes  key hashes, sorted ascending.
+     * @param offsets record offsets matching each hash.
+     */
+    static void write(@NonNull File file, @NonNull long[] hashes, @NonNull long[] offsets, int count,
+                      long coveredLength, long garbageBytes, long generation) throws IOException {
+        final File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * ENTRY_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(0)
+                    .putLong(coveredLength).putLong(garbageBytes).putLong(generation);
+            for (int i = 0; i < count; i++)
+                buffer.putLong(hashes[i]).putLong(offsets[i]);
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Failed to replace " + file);
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * @return the length of the segment file this index covers. Records after it are replayed
+     * from the segment when the vault is opened.
+     */
+    long coveredLength() {
+        return coveredLength;
+    }
+
+    long garbageBytes() {
+        return garbageBytes;
+    }
+
+    /**
+     * @return the generation of the segment file this index was built for, or 0 for an empty index.
+     */
+    long generation() {
+        return generation;
+    }
+
+    long hashAt(int position) {
+        return buffer.getLong(HEADER_SIZE + position * ENTRY_SIZE);
+    }
+
+    long offsetAt(int position) {
+        return buffer.getLong(HEADER_SIZE + position * ENTRY_SIZE + 8);
+    }
+
+    /**
+     * @return the position of the first entry with the hash, or -1 if there is none.
+     */
+    int find(long hash) {
+        int low = 0;
+        int high = count - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midHash = hashAt(mid);
+            if (midHash < hash) {
+                low = mid + 1;
+            } else if (midHash > hash) {
+                high = mid - 1;
+            } else {
+                found = mid;
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 64-bit FNV-1a, cheap and well distributed enough for the index. Collisions are resolved by
+     * comparing the key stored in the record.
+     */
+    static long hash(@NonNull byte[] key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,195 @@
+package com.afollestad.digitus;
+
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.LOLLIPOP, manifest = Config.NONE)
+public class AuthenticationFutureTest {
+
+    private Digitus digitus;
+
+    @Before
+    public void setUp() {
+        digitus = TestSessions.init(new TestSessions.Callback());
+    }
+
+    @After
+    public void tearDown() {
+        Digitus.deinitAll();
+    }
+
+    @Test
+    public void completesOnAuthentication() throws Exception {
+        final AuthenticationFuture future = subscribe();
+        final RecordingListener listener = new RecordingListener();
+        future.addListener(listener, DigitusExecutors.DIRECT);
+        digitus.dispatchAuthenticated(digitus);
+
+        assertTrue(future.isDone());
+        assertFalse(future.isCancelled());
+        assertSame(digitus, future.get());
+        assertSame(digitus, listener.authenticated);
+        // The observer unsubscribes, later events don't reach the future
+        digitus.dispatchError(digitus, DigitusError.KEY_FAILED);
+        assertSame(digitus, future.get());
+        assertNull(listener.error);
+    }
+
+    @Test
+    public void retryableErrorsDontEndIt() throws Exception {
+        final AuthenticationFuture future = subscribe();
+        digitus.dispatchError(digitus, DigitusError.NOT_RECOGNIZED);
+        digitus.dispatchError(digitus, DigitusError.help(1, "Partial fingerprint detected."));
+        assertFalse(future.isDone());
+
+        digitus.dispatchError(digitus, DigitusError.framework(7, "Too many attempts."));
+        assertFailed(future, DigitusErrorType.UNRECOVERABLE_ERROR, 7);
+    }
+
+    @Test
+    public void newFingerprintFailsIt() throws Exception {
+        final AuthenticationFuture future = subscribe();
+        digitus.dispatchListening(false);
+        assertFalse(future.isDone());
+        digitus.dispatchListening(true);
+        assertEquals(DigitusError.KEY_INVALIDATED, assertFailed(future, DigitusErrorType.UNRECOVERABLE_ERROR,
+                DigitusError.KEY_INVALIDATED.getCode()));
+    }
+
+    @Test
+    public void unsupportedDeviceFailsRightAway() throws Exception {
+        // Nothing can be started before Marshmallow, the specific error wins over NOT_STARTED
+        final AuthenticationFuture future = digitus.authenticate();
+        assertEquals(DigitusError.UNSUPPORTED, assertFailed(future, DigitusError.UNSUPPORTED.getType(),
+                DigitusError.UNSUPPORTED.getCode()));
+    }
+
+    @Test
+    public void failIsIgnoredOnceDone() throws Exception {
+        final AuthenticationFuture future = subscribe();
+        future.fail(new DigitusException(DigitusError.NOT_STARTED));
+        future.fail(new DigitusException(DigitusError.KEY_FAILED));
+        assertEquals(DigitusError.NOT_STARTED, assertFailed(future, DigitusError.NOT_STARTED.getType(),
+                DigitusError.NOT_STARTED.getCode()));
+    }
+
+    @Test
+    public void cancellingSkipsListeners() throws Exception {
+        final AuthenticationFuture future = subscribe();
+        final RecordingListener listener = new RecordingListener();
+        future.addListener(listener, DigitusExecutors.DIRECT);
+        assertTrue(future.cancel(false));
+        assertFalse(future.cancel(false));
+        assertTrue(future.isCancelled());
+        assertTrue(future.isDone());
+        digitus.dispatchAuthenticated(digitus);
+
+        try {
+            future.get();
+            fail("A cancelled future returned a result.");
+        } catch (CancellationException expected) {
+        }
+        assertNull(listener.authenticated);
+        assertNull(listener.error);
+    }
+
+    @Test
+    public void deinitCancelsPendingFutures() {
+        final AuthenticationFuture future = subscribe();
+        Digitus.deinit(TestSessions.KEY_NAME);
+        assertTrue(future.isCancelled());
+    }
+
+    @Test
+    public void listenersAddedLaterRunOnTheMainThread() throws Exception {
+        final AuthenticationFuture future = subscribe();
+        digitus.dispatchAuthenticated(digitus);
+        final RecordingListener listener = new RecordingListener();
+        future.addListener(listener);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertSame(digitus, listener.authenticated);
+        assertTrue(listener.onMainThread);
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void getTimesOut() throws Exception {
+        subscribe().get(10, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void getWaitsForAnotherThread() throws Exception {
+        final AuthenticationFuture future = subscribe();
+        final Thread sensor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                digitus.dispatchAuthenticated(digitus);
+            }
+        });
+        sensor.start();
+        assertSame(digitus, future.get(5, TimeUnit.SECONDS));
+        sensor.join();
+    }
+
+    /**
+     * @return a future subscribed to the session like {@link Digitus#authenticate()} does, without
+     * starting the sensor.
+     */
+    private AuthenticationFuture subscribe() {
+        final AuthenticationFuture future = new AuthenticationFuture(digitus);
+        digitus.addCallback(future.observer(), DigitusExecutors.DIRECT);
+        return future;
+    }
+
+    private static DigitusError assertFailed(AuthenticationFuture future, DigitusErrorType type, int code) throws InterruptedException {
+        assertTrue(future.isDone());
+        assertFalse(future.isCancelled());
+        try {
+            future.get();
+            fail("A failed future returned a result.");
+            return null;
+        } catch (ExecutionException e) {
+            final DigitusException cause = (DigitusException) e.getCause();
+            assertEquals(type, cause.getType());
+            assertEquals(code, cause.getCode());
+            return cause.getError();
+        }
+    }
+
+    private static class RecordingListener implements AuthenticationFuture.Listener {
+
+        Digitus authenticated;
+        DigitusException error;
+        boolean onMainThread;
+
+        @Override
+        public void onAuthenticated(Digitus digitus) {
+            authenticated = digitus;
+            onMainThread = DigitusExecutors.isMainThread();
+        }
+
+        @Override
+        public void onError(DigitusException e) {
+            error = e;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.afollestad.digitus;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class BatchCryptoTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        final SecretKey key = BatchCrypto.newDataKey();
+        final byte[] batchId = BatchCrypto.newBatchId();
+        // Small enough for the calling thread, and large enough to be spread across threads
+        for (int[] shape : new int[][]{{1, 0}, {5, 100}, {64, 4096}}) {
+            final List<byte[]> items = items(shape[0], shape[1]);
+            final List<byte[]> decrypted = BatchCrypto.decryptAll(key, batchId,
+                    BatchCrypto.encryptAll(key, batchId, items));
+            assertEquals(items.size(), decrypted.size());
+            for (int i = 0; i < items.size(); i++)
+                assertArrayEquals(items.get(i), decrypted.get(i));
+        }
+    }
+
+    @Test
+    public void reorderedItemsAreRejected() throws Exception {
+        final SecretKey key = BatchCrypto.newDataKey();
+        final byte[] batchId = BatchCrypto.newBatchId();
+        final List<byte[]> sealed = new ArrayList<>(BatchCrypto.encryptAll(key, batchId, items(3, 16)));
+        Collections.swap(sealed, 0, 1);
+        assertRejected(key, batchId, sealed);
+    }
+
+    @Test
+    public void droppedItemsAreRejected() throws Exception {
+        final SecretKey key = BatchCrypto.newDataKey();
+        final byte[] batchId = BatchCrypto.newBatchId();
+        final List<byte[]> sealed = BatchCrypto.encryptAll(key, batchId, items(3, 16));
+        assertRejected(key, batchId, sealed.subList(0, 2));
+    }
+
+    @Test
+    public void itemsFromAnotherBatchAreRejected() throws Exception {
+        final SecretKey key = BatchCrypto.newDataKey();
+        final List<byte[]> first = BatchCrypto.encryptAll(key, BatchCrypto.newBatchId(), items(2, 16));
+        final byte[] otherId = BatchCrypto.newBatchId();
+        final List<byte[]> mixed = new ArrayList<>(BatchCrypto.encryptAll(key, otherId, items(2, 16)));
+        mixed.set(1, first.get(1));
+        assertRejected(key, otherId, mixed);
+    }
+
+    @Test
+    public void sealAuthenticatesAssociatedData() throws Exception {
+        final SecretKey key = BatchCrypto.newDataKey();
+        final byte[] plaintext = "secret".getBytes("UTF-8");
+        final byte[] sealed = BatchCrypto.seal(key, new byte[]{1}, plaintext);
+
+        // The sealed data can sit anywhere in a larger buffer, like a vault record
+        final byte[] record = new byte[sealed.length + 10];
+        System.arraycopy(sealed, 0, record, 7, sealed.length);
+        assertArrayEquals(plaintext, BatchCrypto.open(key, new byte[]{1}, record, 7, sealed.length));
+        try {
+            BatchCrypto.open(key, new byte[]{2}, sealed, 0, sealed.length);
+            fail("Other associated data was accepted.");
+        } catch (GeneralSecurityException expected) {
+        }
+        try {
+            BatchCrypto.open(key, new byte[]{1}, sealed, 0, 5);
+            fail("A truncated nonce was accepted.");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    @Test
+    public void sealedBatchSurvivesSerialization() throws Exception {
+        final SealedBatch batch = new SealedBatch(new byte[]{1, 2}, new byte[]{3, 4, 5},
+                BatchCrypto.newBatchId(), items(3, 20));
+        final SealedBatch read = SealedBatch.fromByteArray(batch.toByteArray());
+        assertArrayEquals(batch.getIv(), read.getIv());
+        assertArrayEquals(batch.getWrappedKey(), read.getWrappedKey());
+        assertArrayEquals(batch.getBatchId(), read.getBatchId());
+        assertEquals(batch.size(), read.size());
+        for (int i = 0; i < batch.size(); i++)
+            assertArrayEquals(batch.getItems().get(i), read.getItems().get(i));
+    }
+
+    @Test
+    public void malformedBatchesAreRejected() {
+        final byte[] data = new SealedBatch(new byte[]{1}, new byte[]{2}, new byte[]{3},
+                items(1, 4)).toByteArray();
+        final byte[] otherVersion = data.clone();
+        otherVersion[0] = 2;
+        assertMalformed(otherVersion);
+        // The length of the IV claims more bytes than there are
+        final byte[] overlong = data.clone();
+        overlong[1] = 0x7f;
+        assertMalformed(overlong);
+    }
+
+    private static void assertRejected(SecretKey key, byte[] batchId, List<byte[]> sealed) {
+        try {
+            BatchCrypto.decryptAll(key, batchId, sealed);
+            fail("A tampered batch was accepted.");
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    private static void assertMalformed(byte[] data) {
+        try {
+            SealedBatch.fromByteArray(data);
+            fail("A malformed batch was read.");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static List<byte[]> items(int count, int size) {
+        final Random random = new Random(count * 31 + size);
+        final List<byte[]> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final byte[] item = new byte[size];
+            random.nextBytes(item);
+            items.add(item);
+        }
+        return items;
+    }
+}
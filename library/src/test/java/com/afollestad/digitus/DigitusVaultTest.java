@@ -0,0 +1,333 @@
+package com.afollestad.digitus;
+
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.LOLLIPOP, manifest = Config.NONE)
+public class DigitusVaultTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String NAME = "vault";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Digitus digitus;
+    private SecretKey storeKey;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        digitus = TestSessions.init(new TestSessions.Callback());
+        storeKey = BatchCrypto.newDataKey();
+        directory = folder.newFolder();
+    }
+
+    @After
+    public void tearDown() {
+        Digitus.deinitAll();
+    }
+
+    @Test
+    public void valuesSurviveReopening() throws Exception {
+        DigitusVault vault = create();
+        vault.put("a", bytes("first"));
+        vault.put("b", bytes("second"));
+        vault.put("a", bytes("replaced"));
+        assertTrue(vault.remove("b"));
+        assertFalse(vault.remove("b"));
+        vault.close();
+
+        vault = unlock(storeKey);
+        assertArrayEquals(bytes("replaced"), vault.get("a"));
+        assertNull(vault.get("b"));
+        assertFalse(vault.contains("b"));
+        vault.close();
+    }
+
+    @Test
+    public void keyNamesArentStoredInPlaintext() throws Exception {
+        final DigitusVault vault = create();
+        vault.put("account-password", bytes("hunter2"));
+        vault.close();
+        final String segment = new String(read(file(".seg")), "ISO-8859-1");
+        assertFalse(segment.contains("account-password"));
+        assertFalse(segment.contains("hunter2"));
+    }
+
+    @Test
+    public void tamperedValuesAreRejected() throws Exception {
+        final DigitusVault vault = create();
+        vault.put("a", bytes("value"));
+        vault.close();
+        // The last byte of the segment is part of the value's tag
+        final RandomAccessFile segment = new RandomAccessFile(file(".seg"), "rw");
+        try {
+            segment.seek(segment.length() - 1);
+            final int last = segment.read();
+            segment.seek(segment.length() - 1);
+            segment.write(last ^ 1);
+        } finally {
+            segment.close();
+        }
+
+        final DigitusVault reopened = unlock(storeKey);
+        try {
+            reopened.get("a");
+            fail("The tampered value was accepted.");
+        } catch (AEADBadTagException expected) {
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void recordsWrittenAfterTheIndexAreReplayed() throws Exception {
+        final DigitusVault vault = create();
+        vault.put("a", bytes("indexed"));
+        vault.flush();
+        vault.put("b", bytes("not indexed"));
+        // A crash now leaves "b" in the segment only
+        final File crashed = snapshot();
+        vault.close();
+
+        final DigitusVault reopened = unlock(crashed, storeKey);
+        assertArrayEquals(bytes("indexed"), reopened.get("a"));
+        assertArrayEquals(bytes("not indexed"), reopened.get("b"));
+        reopened.close();
+    }
+
+    @Test
+    public void tornWritesAreDropped() throws Exception {
+        final DigitusVault vault = create();
+        vault.put("a", bytes("complete"));
+        vault.flush();
+        vault.put("b", bytes("torn"));
+        final File crashed = snapshot();
+        vault.close();
+        final File segment = new File(crashed, NAME + ".seg");
+        final RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+
+        DigitusVault reopened = unlock(crashed, storeKey);
+        assertArrayEquals(bytes("complete"), reopened.get("a"));
+        assertNull(reopened.get("b"));
+        // Writes after the dropped record must be readable after the next reopen
+        reopened.put("c", bytes("after"));
+        reopened.close();
+        reopened = unlock(crashed, storeKey);
+        assertArrayEquals(bytes("complete"), reopened.get("a"));
+        assertArrayEquals(bytes("after"), reopened.get("c"));
+        reopened.close();
+    }
+
+    @Test
+    public void compactionKeepsLatestValues() throws Exception {
+        final DigitusVault vault = create();
+        final byte[] filler = new byte[1024];
+        for (int i = 0; i < 200; i++)
+            vault.put("key-" + (i % 10), value(i, filler));
+        vault.remove("key-9");
+        // The writes may have started a compaction already, the second one sees all of them
+        vault.compact().get();
+        vault.compact().get();
+        // Nine live values of about 1 KiB each are left
+        assertTrue(file(".seg").length() < 16 * 1024);
+        assertFalse(file(".seg.compact").exists());
+        for (int i = 0; i < 9; i++)
+            assertArrayEquals(value(190 + i, filler), vault.get("key-" + i));
+        assertNull(vault.get("key-9"));
+        vault.close();
+
+        final DigitusVault reopened = unlock(storeKey);
+        for (int i = 0; i < 9; i++)
+            assertArrayEquals(value(190 + i, filler), reopened.get("key-" + i));
+        assertNull(reopened.get("key-9"));
+        reopened.close();
+    }
+
+    @Test
+    public void indexFromAnotherGenerationIsIgnored() throws Exception {
+        final DigitusVault vault = create();
+        final byte[] filler = new byte[256];
+        for (int i = 0; i < 50; i++)
+            vault.put("key-" + (i % 5), value(i, filler));
+        vault.flush();
+        final byte[] staleIndex = read(file(".idx"));
+        final long staleLength = file(".seg").length();
+        vault.compact().get();
+        // Grow the new segment past the length the stale index covers, so only the generation
+        // tells them apart
+        int later = 0;
+        while (file(".seg").length() <= staleLength)
+            vault.put("later-" + later, value(later++, filler));
+        vault.close();
+        // As if the index of a compacted segment never made it to disk
+        write(file(".idx"), staleIndex);
+
+        final DigitusVault reopened = unlock(storeKey);
+        for (int i = 0; i < 5; i++)
+            assertArrayEquals(value(45 + i, filler), reopened.get("key-" + i));
+        for (int i = 0; i < later; i++)
+            assertArrayEquals(value(i, filler), reopened.get("later-" + i));
+        reopened.close();
+    }
+
+    @Test
+    public void rewrapMovesTheVaultToANewKey() throws Exception {
+        final DigitusVault vault = create();
+        vault.put("a", bytes("kept"));
+        final SecretKey rotated = BatchCrypto.newDataKey();
+        TestSessions.authenticate(digitus, rotated, null);
+        vault.rewrap(digitus);
+        vault.close();
+
+        final DigitusVault reopened = DigitusVault.open(directory, NAME);
+        TestSessions.authenticate(digitus, storeKey, reopened.getUnlockIv());
+        try {
+            reopened.unlock(digitus);
+            fail("The old key still unlocks the vault.");
+        } catch (GeneralSecurityException expected) {
+        }
+        TestSessions.authenticate(digitus, rotated, reopened.getUnlockIv());
+        reopened.unlock(digitus);
+        assertArrayEquals(bytes("kept"), reopened.get("a"));
+        reopened.close();
+    }
+
+    @Test
+    public void lockedVaultCantBeRead() throws Exception {
+        final DigitusVault vault = create();
+        vault.put("a", bytes("value"));
+        vault.lock();
+        try {
+            vault.get("a");
+            fail("A locked vault was read.");
+        } catch (IllegalStateException expected) {
+        }
+        vault.close();
+    }
+
+    @Test
+    public void unknownSegmentVersionIsRejected() throws Exception {
+        create().close();
+        final RandomAccessFile segment = new RandomAccessFile(file(".seg"), "rw");
+        try {
+            segment.seek(4);
+            segment.writeInt(2);
+        } finally {
+            segment.close();
+        }
+        try {
+            DigitusVault.open(directory, NAME);
+            fail("A segment from another format version was opened.");
+        } catch (IOException expected) {
+        }
+    }
+
+    private DigitusVault create() throws Exception {
+        final DigitusVault vault = DigitusVault.open(directory, NAME);
+        assertFalse(vault.isCreated());
+        assertNull(vault.getUnlockIv());
+        TestSessions.authenticate(digitus, storeKey, null);
+        vault.unlock(digitus);
+        assertTrue(vault.isCreated());
+        return vault;
+    }
+
+    private DigitusVault unlock(SecretKey key) throws Exception {
+        return unlock(directory, key);
+    }
+
+    private DigitusVault unlock(File directory, SecretKey key) throws Exception {
+        final DigitusVault vault = DigitusVault.open(directory, NAME);
+        assertNotNull(vault.getUnlockIv());
+        TestSessions.authenticate(digitus, key, vault.getUnlockIv());
+        vault.unlock(digitus);
+        return vault;
+    }
+
+    private File file(String extension) {
+        return new File(directory, NAME + extension);
+    }
+
+    /**
+     * @return a copy of the vault's files as they are on disk right now.
+     */
+    private File snapshot() throws IOException {
+        final File copy = folder.newFolder();
+        for (String extension : new String[]{".seg", ".idx", ".key"}) {
+            if (file(extension).exists())
+                write(new File(copy, NAME + extension), read(file(extension)));
+        }
+        return copy;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(UTF_8);
+    }
+
+    private static byte[] value(int i, byte[] filler) {
+        final byte[] value = Arrays.copyOf(filler, filler.length + 4);
+        value[filler.length] = (byte) (i >>> 24);
+        value[filler.length + 1] = (byte) (i >>> 16);
+        value[filler.length + 2] = (byte) (i >>> 8);
+        value[filler.length + 3] = (byte) i;
+        return value;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        final byte[] data = new byte[(int) file.length()];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < data.length)
+                read += in.read(data, read, data.length - read);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.afollestad.digitus;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MerkleTreeTest {
+
+    @Test
+    public void everyProofLeadsToTheRoot() throws IOException {
+        // Odd sizes leave nodes without a sibling on several levels
+        for (int size = 1; size <= 17; size++) {
+            final List<byte[]> items = items(size);
+            final MerkleTree tree = new MerkleTree(items);
+            assertEquals(size, tree.size());
+            for (int i = 0; i < size; i++) {
+                final MerkleProof proof = MerkleProof.fromByteArray(tree.proof(i).toByteArray());
+                assertEquals(i, proof.getIndex());
+                assertEquals(size, proof.getSize());
+                assertTrue("Item " + i + " of " + size, proof.verify(items.get(i), tree.root()));
+            }
+        }
+    }
+
+    @Test
+    public void singleItemIsHashedToo() {
+        final MerkleTree tree = new MerkleTree(items(1));
+        assertEquals(32, tree.root().length);
+        assertFalse(Arrays.equals(items(1).get(0), tree.root()));
+    }
+
+    @Test
+    public void proofsOnlyFitTheirItem() {
+        final List<byte[]> items = items(6);
+        final MerkleTree tree = new MerkleTree(items);
+        final MerkleProof proof = tree.proof(2);
+        assertFalse(proof.verify(items.get(3), tree.root()));
+        assertFalse(proof.verify("forged".getBytes(), tree.root()));
+        assertFalse(proof.verify(items.get(2), new MerkleTree(items(7)).root()));
+    }
+
+    @Test
+    public void innerNodesArentAcceptedAsItems() {
+        final List<byte[]> items = items(4);
+        final MerkleTree tree = new MerkleTree(items);
+        final byte[] firstLeaf = siblings(tree.proof(1))[0];
+        final byte[] secondLeaf = siblings(tree.proof(0))[0];
+        final byte[] secondPair = siblings(tree.proof(0))[1];
+        // The bytes hashed for the node over the first two leaves. Without a leaf prefix, they'd
+        // pass as the first item of a two item batch with the same root.
+        final byte[] node = new byte[1 + 32 + 32];
+        node[0] = 1;
+        System.arraycopy(firstLeaf, 0, node, 1, 32);
+        System.arraycopy(secondLeaf, 0, node, 33, 32);
+        final byte[] forged = MerkleTree.rootFromProof(node, 0, 2, new byte[][]{secondPair});
+        assertFalse(Arrays.equals(tree.root(), forged));
+    }
+
+    @Test
+    public void proofWithTheWrongShapeIsRejected() {
+        final List<byte[]> items = items(5);
+        final MerkleTree tree = new MerkleTree(items);
+        final byte[][] siblings = siblings(tree.proof(1));
+        assertArrayEquals(tree.root(), MerkleTree.rootFromProof(items.get(1), 1, 5, siblings));
+        assertNull(MerkleTree.rootFromProof(items.get(1), 1, 5, Arrays.copyOf(siblings, siblings.length - 1)));
+        assertNull(MerkleTree.rootFromProof(items.get(1), 1, 5, Arrays.copyOf(siblings, siblings.length + 1)));
+        assertNull(MerkleTree.rootFromProof(items.get(1), 5, 5, siblings));
+        assertNull(MerkleTree.rootFromProof(items.get(1), -1, 5, siblings));
+    }
+
+    @Test
+    public void malformedProofsAreRejected() {
+        final byte[] data = new MerkleTree(items(4)).proof(1).toByteArray();
+        final byte[] otherVersion = data.clone();
+        otherVersion[0] = 2;
+        assertMalformed(otherVersion);
+        // More siblings than there are bytes for
+        final byte[] missingSiblings = data.clone();
+        missingSiblings[9] = 3;
+        assertMalformed(missingSiblings);
+        // An index past the end of the batch
+        final byte[] badIndex = data.clone();
+        badIndex[4] = 9;
+        assertMalformed(badIndex);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyBatchIsRejected() {
+        new MerkleTree(new ArrayList<byte[]>());
+    }
+
+    /**
+     * @return the proof's sibling hashes, read back from its serialized form.
+     */
+    private static byte[][] siblings(MerkleProof proof) {
+        final byte[] data = proof.toByteArray();
+        final byte[][] siblings = new byte[data[9]][];
+        for (int i = 0; i < siblings.length; i++)
+            siblings[i] = Arrays.copyOfRange(data, 10 + i * 32, 10 + (i + 1) * 32);
+        return siblings;
+    }
+
+    private static void assertMalformed(byte[] data) {
+        try {
+            MerkleProof.fromByteArray(data);
+            fail("A malformed proof was read.");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static List<byte[]> items(int count) {
+        final List<byte[]> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            items.add(("item " + i).getBytes());
+        return items;
+    }
+}
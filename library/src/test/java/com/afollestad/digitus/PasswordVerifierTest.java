@@ -0,0 +1,148 @@
+package com.afollestad.digitus;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.LOLLIPOP, manifest = Config.NONE)
+public class PasswordVerifierTest {
+
+    private static final String KEY_NAME = "test";
+    private static final int ITERATIONS = 10000;
+
+    private Context context;
+    private SharedPreferences prefs;
+
+    @Before
+    public void setUp() {
+        TestSessions.installProviders();
+        context = RuntimeEnvironment.application;
+        prefs = context.getSharedPreferences("[DIGITUS_PASSWORDS]", Context.MODE_PRIVATE);
+        // Skips calibrating, which targets a quarter of a second per hash
+        prefs.edit().putInt("calibrated_iterations", ITERATIONS).commit();
+    }
+
+    @Test
+    public void verifiesTheStoredPassword() {
+        final PasswordVerifier verifier = new PasswordVerifier(context, KEY_NAME);
+        assertFalse(verifier.isEnrolled());
+        assertFalse(verifier.verify("anything"));
+
+        verifier.setPassword("correct horse");
+        assertTrue(verifier.isEnrolled());
+        assertTrue(verifier.verify("correct horse"));
+        assertFalse(verifier.verify("correct horse "));
+        assertFalse(verifier.verify(""));
+        // Each key name has its own password
+        assertFalse(new PasswordVerifier(context, "other").isEnrolled());
+
+        verifier.clear();
+        assertFalse(verifier.isEnrolled());
+        assertFalse(verifier.verify("correct horse"));
+    }
+
+    @Test
+    public void hashesKeepTheirIterationCount() {
+        final PasswordVerifier verifier = new PasswordVerifier(context, KEY_NAME);
+        verifier.setPassword("password");
+        // As if the device was calibrated again after an update
+        prefs.edit().putInt("calibrated_iterations", ITERATIONS * 2).commit();
+        assertTrue(verifier.verify("password"));
+        assertEquals(ITERATIONS, prefs.getInt(KEY_NAME + ":iterations", 0));
+
+        verifier.setPassword("password");
+        assertEquals(ITERATIONS * 2, prefs.getInt(KEY_NAME + ":iterations", 0));
+        assertTrue(verifier.verify("password"));
+    }
+
+    @Test
+    public void hashesAreSalted() {
+        final PasswordVerifier verifier = new PasswordVerifier(context, KEY_NAME);
+        verifier.setPassword("password");
+        final String first = prefs.getString(KEY_NAME + ":hash", null);
+        verifier.setPassword("password");
+        assertFalse(first.equals(prefs.getString(KEY_NAME + ":hash", null)));
+        // The output size of HMAC-SHA1, in Base64
+        assertEquals(28, first.length());
+    }
+
+    @Test
+    public void calibrationIsSaved() {
+        prefs.edit().remove("calibrated_iterations").commit();
+        new PasswordVerifier(context, KEY_NAME).setPassword("password");
+        assertTrue(prefs.getInt("calibrated_iterations", 0) >= ITERATIONS);
+    }
+
+    @Test
+    public void asyncResultIsDeliveredOnTheMainThread() throws Exception {
+        final PasswordVerifier verifier = new PasswordVerifier(context, KEY_NAME);
+        verifier.setPassword("password");
+        final RecordingCallback callback = new RecordingCallback();
+        final Future<Boolean> future = verifier.verify("password", callback);
+        assertTrue(future.get(10, TimeUnit.SECONDS));
+        awaitResult(callback);
+        assertEquals(Boolean.TRUE, callback.valid);
+        assertTrue(callback.onMainThread);
+
+        final RecordingCallback wrong = new RecordingCallback();
+        verifier.verify("wrong", wrong).get(10, TimeUnit.SECONDS);
+        awaitResult(wrong);
+        assertEquals(Boolean.FALSE, wrong.valid);
+    }
+
+    @Test
+    public void cancelledResultIsDropped() throws Exception {
+        final PasswordVerifier verifier = new PasswordVerifier(context, KEY_NAME);
+        verifier.setPassword("password");
+        final RecordingCallback callback = new RecordingCallback();
+        final Future<Boolean> future = verifier.verify("password", callback);
+        future.get(10, TimeUnit.SECONDS);
+        // Like a dialog dismissed after the hash finished, but before the result was delivered
+        future.cancel(false);
+        // The result is posted after get() returns, give it the time a delivery takes above
+        Thread.sleep(100);
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+        assertNull(callback.valid);
+    }
+
+    /**
+     * Runs the main thread's tasks until the result is delivered. It's posted once the hash is
+     * done, which can be just after get() returns.
+     */
+    private static void awaitResult(RecordingCallback callback) throws InterruptedException {
+        for (int i = 0; i < 100 && callback.valid == null; i++) {
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+            if (callback.valid == null)
+                Thread.sleep(10);
+        }
+    }
+
+    private static class RecordingCallback implements PasswordVerifier.Callback {
+
+        Boolean valid;
+        boolean onMainThread;
+
+        @Override
+        public void onPasswordVerified(boolean valid) {
+            this.valid = valid;
+            onMainThread = DigitusExecutors.isMainThread();
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.afollestad.digitus;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class StreamCryptoTest {
+
+    private static final int CHUNK = StreamCrypto.CHUNK_SIZE;
+
+    /**
+     * Stands in for the Key Store key, which only wraps the stream's data key.
+     */
+    private SecretKey storeKey;
+    private byte[] iv;
+
+    @Before
+    public void setUp() {
+        storeKey = BatchCrypto.newDataKey();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        for (int size : new int[]{0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK + 7}) {
+            final byte[] plaintext = payload(size);
+            assertArrayEquals("Size " + size, plaintext, decrypt(encrypt(plaintext)));
+        }
+    }
+
+    @Test
+    public void smallWritesAreChunkedTheSame() throws Exception {
+        final byte[] plaintext = payload(2 * CHUNK + 100);
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final Cipher cipher = keyCipher(null);
+        final OutputStream out = StreamCrypto.encrypt(sink, cipher);
+        iv = cipher.getIV();
+        for (byte b : plaintext)
+            out.write(b);
+        out.close();
+        final byte[] stream = sink.toByteArray();
+        assertEquals(3, chunks(stream).size());
+        assertArrayEquals(plaintext, decrypt(stream));
+    }
+
+    @Test
+    public void fullLastChunkIsFlagged() throws Exception {
+        // The last chunk is only sealed on close, so an exact multiple doesn't leave an empty chunk
+        final List<int[]> chunks = chunks(encrypt(payload(2 * CHUNK)));
+        assertEquals(2, chunks.size());
+        assertEquals(0, chunks.get(0)[2]);
+        assertEquals(1, chunks.get(1)[2]);
+    }
+
+    @Test
+    public void droppedLastChunkIsDetected() throws Exception {
+        final byte[] stream = encrypt(payload(2 * CHUNK + 10));
+        final List<int[]> chunks = chunks(stream);
+        assertRejected(Arrays.copyOf(stream, chunks.get(2)[0]));
+    }
+
+    @Test
+    public void truncatedChunkIsDetected() throws Exception {
+        final byte[] stream = encrypt(payload(CHUNK + 10));
+        assertRejected(Arrays.copyOf(stream, stream.length - 1));
+    }
+
+    @Test
+    public void reorderedChunksAreDetected() throws Exception {
+        final byte[] stream = encrypt(payload(3 * CHUNK));
+        final List<int[]> chunks = chunks(stream);
+        final int[] first = chunks.get(0);
+        final int[] second = chunks.get(1);
+        final byte[] swapped = stream.clone();
+        // Both chunks are full, so they have the same length
+        System.arraycopy(stream, second[0], swapped, first[0], second[1]);
+        System.arraycopy(stream, first[0], swapped, second[0], first[1]);
+        assertRejected(swapped);
+    }
+
+    @Test
+    public void forgedFinalFlagIsDetected() throws Exception {
+        final byte[] stream = encrypt(payload(2 * CHUNK + 10));
+        final List<int[]> chunks = chunks(stream);
+        // Ending the stream early by flagging the first chunk as the last one
+        final byte[] cut = Arrays.copyOf(stream, chunks.get(1)[0]);
+        final int header = chunks.get(0)[0];
+        ByteBuffer.wrap(cut).putInt(header, ByteBuffer.wrap(cut).getInt(header) | 0x80000000);
+        assertRejected(cut);
+    }
+
+    @Test
+    public void flippedBitIsDetected() throws Exception {
+        final byte[] stream = encrypt(payload(CHUNK + 10));
+        stream[chunks(stream).get(1)[0] + 20] ^= 1;
+        assertRejected(stream);
+    }
+
+    private byte[] encrypt(byte[] plaintext) throws IOException, GeneralSecurityException {
+        final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        final Cipher cipher = keyCipher(null);
+        final OutputStream out = StreamCrypto.encrypt(sink, cipher);
+        iv = cipher.getIV();
+        out.write(plaintext);
+        out.close();
+        return sink.toByteArray();
+    }
+
+    private byte[] decrypt(byte[] stream) throws IOException, GeneralSecurityException {
+        final InputStream in = StreamCrypto.decrypt(new ByteArrayInputStream(stream), keyCipher(iv));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+        in.close();
+        return out.toByteArray();
+    }
+
+    private void assertRejected(byte[] stream) throws GeneralSecurityException {
+        try {
+            decrypt(stream);
+            fail("A tampered stream was accepted.");
+        } catch (IOException expected) {
+        }
+    }
+
+    private Cipher keyCipher(byte[] iv) throws GeneralSecurityException {
+        final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        if (iv != null) {
+            cipher.init(Cipher.DECRYPT_MODE, storeKey, new GCMParameterSpec(128, iv));
+        } else {
+            cipher.init(Cipher.ENCRYPT_MODE, storeKey);
+        }
+        return cipher;
+    }
+
+    /**
+     * @return the offset of each chunk's header, its size including the header, and whether it's
+     * flagged as the last chunk.
+     */
+    private static List<int[]> chunks(byte[] stream) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream));
+        int position = 4 + in.readInt();
+        in.skipBytes(position - 4);
+        final List<int[]> chunks = new ArrayList<>();
+        while (position < stream.length) {
+            final int header = in.readInt();
+            final int length = header & 0x7fffffff;
+            chunks.add(new int[]{position, 4 + length, header < 0 ? 1 : 0});
+            in.skipBytes(length);
+            position += 4 + length;
+        }
+        return chunks;
+    }
+
+    private static byte[] payload(int size) {
+        final byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        return payload;
+    }
+}
@@ -0,0 +1,89 @@
+package com.afollestad.digitus;
+
+import android.app.Activity;
+
+import org.robolectric.Robolectric;
+
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Sessions for Robolectric tests on a pre-Marshmallow config, where Digitus doesn't touch the Key
+ * Store. A successful authentication is simulated by handing the session a software cipher, the
+ * same way {@link AuthenticationHandler} hands it the cipher unlocked by the sensor.
+ */
+final class TestSessions {
+
+    static final String KEY_NAME = "test";
+
+    private TestSessions() {
+    }
+
+    /**
+     * Robolectric puts Bouncy Castle 1.46 ahead of the JDK providers, its GCM predates
+     * GCMParameterSpec.
+     */
+    static void installProviders() {
+        final Provider bouncyCastle = Security.getProvider("BC");
+        if (bouncyCastle != null) {
+            Security.removeProvider("BC");
+            Security.addProvider(bouncyCastle);
+        }
+    }
+
+    static Digitus init(DigitusCallback callback) {
+        installProviders();
+        final Activity activity = Robolectric.setupActivity(Activity.class);
+        return Digitus.init(activity, KEY_NAME, 1, callback);
+    }
+
+    /**
+     * Unlocks a single operation with the key, like a recognized fingerprint would.
+     *
+     * @param iv the IV to decrypt with, or null to encrypt.
+     */
+    static void authenticate(Digitus digitus, SecretKey key, byte[] iv) throws GeneralSecurityException {
+        final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        if (iv != null) {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, iv));
+            digitus.cipherMode = Cipher.DECRYPT_MODE;
+        } else {
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+            digitus.cipherMode = Cipher.ENCRYPT_MODE;
+        }
+        digitus.cipher = cipher;
+        digitus.cipherIv = iv;
+        digitus.authenticatedCipher = cipher;
+    }
+
+    static class Callback implements DigitusCallback {
+
+        int ready;
+        int authenticated;
+        DigitusError lastError;
+
+        @Override
+        public void onDigitusReady(Digitus digitus) {
+            ready++;
+        }
+
+        @Override
+        public void onDigitusListening(boolean newFingerprint) {
+        }
+
+        @Override
+        public void onDigitusAuthenticated(Digitus digitus) {
+            authenticated++;
+        }
+
+        @Override
+        public void onDigitusError(Digitus digitus, DigitusError error) {
+            lastError = error;
+        }
+    }
+}
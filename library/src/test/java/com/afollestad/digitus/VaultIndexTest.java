@@ -0,0 +1,89 @@
+package com.afollestad.digitus;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class VaultIndexTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writtenIndexIsReadBack() throws IOException {
+        final File file = new File(folder.getRoot(), "index");
+        final long[] hashes = {-5, 1, 1, 7, 42};
+        final long[] offsets = {16, 32, 64, 128, 256};
+        VaultIndex.write(file, hashes, offsets, hashes.length, 512, 48, 3);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        final VaultIndex index = VaultIndex.open(file);
+        assertEquals(5, index.count());
+        assertEquals(512, index.coveredLength());
+        assertEquals(48, index.garbageBytes());
+        assertEquals(3, index.generation());
+        for (int i = 0; i < hashes.length; i++) {
+            assertEquals(hashes[i], index.hashAt(i));
+            assertEquals(offsets[i], index.offsetAt(i));
+        }
+        // Equal hashes are found from the first one, callers walk forward comparing keys
+        assertEquals(1, index.find(1));
+        assertEquals(0, index.find(-5));
+        assertEquals(4, index.find(42));
+        assertEquals(-1, index.find(2));
+        assertEquals(-1, index.find(100));
+    }
+
+    @Test
+    public void missingFileIsEmpty() throws IOException {
+        final VaultIndex index = VaultIndex.open(new File(folder.getRoot(), "missing"));
+        assertEquals(0, index.count());
+        assertEquals(0, index.generation());
+        assertEquals(-1, index.find(1));
+    }
+
+    @Test
+    public void untrustedFilesAreEmpty() throws IOException {
+        final File file = new File(folder.getRoot(), "index");
+        final long[] hashes = {1, 2};
+        final long[] offsets = {16, 32};
+
+        // Another format version
+        VaultIndex.write(file, hashes, offsets, 2, 64, 0, 1);
+        overwriteInt(file, 4, 2);
+        assertEquals(0, VaultIndex.open(file).count());
+
+        // More entries than the file holds, as left by a torn write
+        VaultIndex.write(file, hashes, offsets, 2, 64, 0, 1);
+        overwriteInt(file, 8, 3);
+        assertEquals(0, VaultIndex.open(file).count());
+
+        // Not an index at all
+        VaultIndex.write(file, hashes, offsets, 2, 64, 0, 1);
+        overwriteInt(file, 0, 0);
+        assertEquals(0, VaultIndex.open(file).count());
+    }
+
+    @Test
+    public void hashIsFnv1a() {
+        assertEquals(0xcbf29ce484222325L, VaultIndex.hash(new byte[0]));
+        assertEquals(0xaf63dc4c8601ec8cL, VaultIndex.hash(new byte[]{'a'}));
+    }
+
+    private static void overwriteInt(File file, long position, int value) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            raf.writeInt(value);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -11,8 +11,9 @@ import android.widget.Toast;
 
 import com.afollestad.digitus.Digitus;
 import com.afollestad.digitus.DigitusCallback;
-import com.afollestad.digitus.DigitusErrorType;
+import com.afollestad.digitus.DigitusError;
 import com.afollestad.digitus.FingerprintDialog;
+import com.afollestad.digitus.FingerprintDialogBase;
 
 /**
  * @author Aidan Follestad (afollestad)
@@ -40,7 +41,7 @@ public class MainActivity extends AppCompatActivity implements DigitusCallback,
     @Override
     protected void onResume() {
         super.onResume();
-        Digitus.init(this, getString(R.string.app_name), 69, this);
+        Digitus.initAsync(this, getString(R.string.app_name), 69, this);
         mButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -53,8 +54,20 @@ public class MainActivity extends AppCompatActivity implements DigitusCallback,
     @Override
     protected void onPause() {
         super.onPause();
-        // Calling this method automatically makes a call to stopListening() if necessary
-        Digitus.deinit();
+        // Releases the sensor, the session is resumed by initAsync() in onResume()
+        final Digitus digitus = Digitus.get();
+        if (digitus != null)
+            digitus.pause();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Keep the session through rotation, the next instance picks it up in onResume()
+        if (!isChangingConfigurations()) {
+            // Calling this method automatically makes a call to stopListening() if necessary
+            Digitus.deinit();
+        }
     }
 
     @Override
@@ -108,23 +121,23 @@ public class MainActivity extends AppCompatActivity implements DigitusCallback,
     }
 
     @Override
-    public void onDigitusError(Digitus digitus, DigitusErrorType type, Exception e) {
+    public void onDigitusError(Digitus digitus, DigitusError error) {
         // You could choose to do something different in each of these cases
-        switch (type) {
+        switch (error.getType()) {
             case FINGERPRINT_NOT_RECOGNIZED:
-                mStatus.setText(getString(R.string.status_error, e.getMessage()));
+                mStatus.setText(getString(R.string.status_error, error.getMessage()));
                 break;
             case FINGERPRINTS_UNSUPPORTED:
-                mStatus.setText(getString(R.string.status_error, e.getMessage()));
+                mStatus.setText(getString(R.string.status_error, error.getMessage()));
                 break;
             case HELP_ERROR:
-                mStatus.setText(getString(R.string.status_error, e.getMessage()));
+                mStatus.setText(getString(R.string.status_error, error.getMessage()));
                 break;
             case PERMISSION_DENIED:
-                mStatus.setText(getString(R.string.status_error, e.getMessage()));
+                mStatus.setText(getString(R.string.status_error, error.getMessage()));
                 break;
             case REGISTRATION_NEEDED:
-                mStatus.setText(getString(R.string.status_error, e.getMessage()));
+                mStatus.setText(getString(R.string.status_error, error.getMessage()));
                 mButton.setText(R.string.open_security_settings);
                 mButton.setEnabled(true);
                 mButton.setOnClickListener(new View.OnClickListener() {
@@ -136,7 +149,7 @@ public class MainActivity extends AppCompatActivity implements DigitusCallback,
                 });
                 break;
             case UNRECOVERABLE_ERROR:
-                mStatus.setText(getString(R.string.status_error, e.getMessage()));
+                mStatus.setText(getString(R.string.status_error, error.getMessage()));
                 break;
         }
     }
@@ -147,7 +160,7 @@ public class MainActivity extends AppCompatActivity implements DigitusCallback,
     }
 
     @Override
-    public void onFingerprintDialogVerifyPassword(final FingerprintDialog dialog, final String password) {
+    public void onFingerprintDialogVerifyPassword(final FingerprintDialogBase dialog, final String password) {
         // Simulate server contact
         mButton.postDelayed(new Runnable() {
             @Override
@@ -158,10 +171,18 @@ public class MainActivity extends AppCompatActivity implements DigitusCallback,
     }
 
     @Override
-    public void onFingerprintDialogStageUpdated(FingerprintDialog dialog, FingerprintDialog.Stage stage) {
+    public void onFingerprintDialogStageUpdated(FingerprintDialogBase dialog, FingerprintDialog.Stage stage) {
         Log.d("Digitus", "Dialog stage: " + stage.name());
     }
 
+    @Override
+    public void onFingerprintDialogNewFingerprintConfirmed(FingerprintDialogBase dialog, boolean useFingerprintInFuture) {
+        // Nothing is encrypted with the key here, so it can simply be replaced
+        final Digitus digitus = Digitus.get(getString(R.string.app_name));
+        if (useFingerprintInFuture && digitus != null)
+            digitus.rotateKey();
+    }
+
     @Override
     public void onFingerprintDialogCancelled() {
         Toast.makeText(this, R.string.dialog_cancelled, Toast.LENGTH_SHORT).show();
@@ -0,0 +1,295 @@
+package com.afollestad.digitus;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.security.Signature;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+
+import javax.crypto.Cipher;
+
+/**
+ * A {@link FingerprintSensor} which replays scripted events instead of reading a finger, for
+ * exercising Digitus in tests and stress runs on a host machine. It's shipped in the separate
+ * digitus-testing artifact, so it never ends up in apps. Install it with
+ * {@link Digitus#setFingerprintSensor(FingerprintSensor)} before initializing.
+ * <p>
+ * Events are delivered to the current request one at a time with {@link #deliverNext()}, or as
+ * soon as listening starts with {@link #setAutoDeliver(boolean)}.
+ */
+public class FakeFingerprintSensor implements FingerprintSensor {
+
+    // Error codes used by FingerprintManager
+    public static final int ERROR_TIMEOUT = 3;
+    public static final int ERROR_CANCELED = 5;
+    public static final int ERROR_LOCKOUT = 7;
+
+    public static final class Event {
+
+        private static final int SUCCESS = 0;
+        private static final int FAILURE = 1;
+        private static final int HELP = 2;
+        private static final int ERROR = 3;
+
+        private static final Event SUCCESS_EVENT = new Event(SUCCESS, 0, "");
+        private static final Event FAILURE_EVENT = new Event(FAILURE, 0, "");
+        private static final Event LOCKOUT_EVENT = new Event(ERROR, ERROR_LOCKOUT,
+                "Too many attempts. Try again later.");
+        private static final Event TIMEOUT_EVENT = new Event(ERROR, ERROR_TIMEOUT,
+                "Fingerprint operation timed out.");
+
+        final int type;
+        final int code;
+        final CharSequence message;
+
+        private Event(int type, int code, CharSequence message) {
+            this.type = type;
+            this.code = code;
+            this.message = message;
+        }
+
+        public static Event success() {
+            return SUCCESS_EVENT;
+        }
+
+        public static Event failure() {
+            return FAILURE_EVENT;
+        }
+
+        public static Event help(int helpCode, @NonNull CharSequence helpString) {
+            return new Event(HELP, helpCode, helpString);
+        }
+
+        public static Event error(int errorCode, @NonNull CharSequence errString) {
+            return new Event(ERROR, errorCode, errString);
+        }
+
+        public static Event lockout() {
+            return LOCKOUT_EVENT;
+        }
+
+        public static Event timeout() {
+            return TIMEOUT_EVENT;
+        }
+
+        /**
+         * @return whether the event ends the request it's delivered to.
+         */
+        boolean isTerminal() {
+            return type == SUCCESS || type == ERROR;
+        }
+
+        void deliver(Callback callback, Cipher cipher) {
+            switch (type) {
+                case SUCCESS:
+                    callback.onSucceeded(cipher);
+                    break;
+                case FAILURE:
+                    callback.onFailed();
+                    break;
+                case HELP:
+                    callback.onHelp(code, message);
+                    break;
+                default:
+                    callback.onError(code, message);
+                    break;
+            }
+        }
+    }
+
+    private final class FakeRequest implements Request {
+
+        final Cipher cipher;
+        final Handler handler;
+        final Callback callback;
+
+        FakeRequest(Cipher cipher, Handler handler, Callback callback) {
+            this.cipher = cipher;
+            this.handler = handler;
+            this.callback = callback;
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (FakeFingerprintSensor.this) {
+                if (active != this) return;
+                active = null;
+                cancelCount++;
+            }
+            // Like the framework, confirm the cancellation with an error
+            post(this, Event.error(ERROR_CANCELED, "Fingerprint operation canceled."));
+        }
+    }
+
+    private boolean hardwareDetected = true;
+    private boolean enrolled = true;
+    private boolean autoDeliver;
+    private final Queue<Event> script = new ArrayDeque<>();
+    private List<Event> repeating = Collections.emptyList();
+    private int repeatPosition;
+    private FakeRequest active;
+    private int authenticateCount;
+    private int cancelCount;
+
+    public synchronized FakeFingerprintSensor setHardwareDetected(boolean hardwareDetected) {
+        this.hardwareDetected = hardwareDetected;
+        return this;
+    }
+
+    public synchronized FakeFingerprintSensor setEnrolled(boolean enrolled) {
+        this.enrolled = enrolled;
+        return this;
+    }
+
+    /**
+     * When enabled, scripted events are delivered as soon as listening starts, until one of them
+     * ends the request or the script runs out (or, when repeating, has been played once).
+     */
+    public synchronized FakeFingerprintSensor setAutoDeliver(boolean autoDeliver) {
+        this.autoDeliver = autoDeliver;
+        return this;
+    }
+
+    /**
+     * Adds events to be delivered in order, across as many requests as it takes.
+     */
+    public synchronized FakeFingerprintSensor enqueue(@NonNull Event... events) {
+        script.addAll(Arrays.asList(events));
+        return this;
+    }
+
+    /**
+     * Sets events which are played in a loop once the queued events run out, e.g. a failure
+     * followed by a success to simulate a user who needs two tries.
+     */
+    public synchronized FakeFingerprintSensor setRepeating(@NonNull Event... events) {
+        repeating = Arrays.asList(events);
+        repeatPosition = 0;
+        return this;
+    }
+
+    /**
+     * Clears the script and counters, and abandons the current request without notifying it.
+     */
+    public synchronized void reset() {
+        script.clear();
+        repeating = Collections.emptyList();
+        repeatPosition = 0;
+        active = null;
+        authenticateCount = 0;
+        cancelCount = 0;
+    }
+
+    public synchronized boolean isListening() {
+        return active != null;
+    }
+
+    public synchronized int getAuthenticateCount() {
+        return authenticateCount;
+    }
+
+    public synchronized int getCancelCount() {
+        return cancelCount;
+    }
+
+    /**
+     * Delivers the next scripted event to the current request.
+     *
+     * @return false if nothing is listening, or nothing is scripted.
+     */
+    public boolean deliverNext() {
+        final FakeRequest request;
+        final Event event;
+        synchronized (this) {
+            request = active;
+            if (request == null) return false;
+            event = nextEvent();
+            if (event == null) return false;
+            if (event.isTerminal())
+                active = null;
+        }
+        post(request, event);
+        return true;
+    }
+
+    /**
+     * Delivers an event to the current request, bypassing the script.
+     *
+     * @return false if nothing is listening.
+     */
+    public boolean deliver(@NonNull Event event) {
+        final FakeRequest request;
+        synchronized (this) {
+            request = active;
+            if (request == null) return false;
+            if (event.isTerminal())
+                active = null;
+        }
+        post(request, event);
+        return true;
+    }
+
+    private Event nextEvent() {
+        final Event queued = script.poll();
+        if (queued != null || repeating.isEmpty()) return queued;
+        final Event event = repeating.get(repeatPosition);
+        repeatPosition = (repeatPosition + 1) % repeating.size();
+        return event;
+    }
+
+    private void post(final FakeRequest request, final Event event) {
+        if (request.handler == null) {
+            event.deliver(request.callback, request.cipher);
+        } else {
+            request.handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    event.deliver(request.callback, request.cipher);
+                }
+            });
+        }
+    }
+
+    // FingerprintSensor
+
+    @Override
+    public synchronized boolean isHardwareDetected() {
+        return hardwareDetected;
+    }
+
+    @Override
+    public synchronized boolean hasEnrolledFingerprints() {
+        return enrolled;
+    }
+
+    @NonNull
+    @Override
+    public Request authenticate(@NonNull Signature signature, @Nullable Handler handler, @NonNull Callback callback) {
+        return authenticate((Cipher) null, handler, callback);
+    }
+
+    @NonNull
+    @Override
+    public Request authenticate(@Nullable Cipher cipher, @Nullable Handler handler, @NonNull Callback callback) {
+        final FakeRequest request = new FakeRequest(cipher, handler, callback);
+        final int budget;
+        synchronized (this) {
+            active = request;
+            authenticateCount++;
+            budget = autoDeliver ? script.size() + repeating.size() : 0;
+        }
+        for (int i = 0; i < budget && isActive(request); i++) {
+            if (!deliverNext()) break;
+        }
+        return request;
+    }
+
+    private synchronized boolean isActive(FakeRequest request) {
+        return active == request;
+    }
+}